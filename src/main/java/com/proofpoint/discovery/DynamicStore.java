@@ -15,6 +15,10 @@
  */
 package com.proofpoint.discovery;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
 import java.util.stream.Stream;
 
 public interface DynamicStore
@@ -30,4 +34,58 @@ public interface DynamicStore
     Stream<Service> get(String type, String pool);
 
     String getAnnouncer(Id<Node> nodeId);
+
+    /**
+     * Returns a version that advances whenever the services returned by {@link #get(String)}
+     * change. An expired service is no longer returned at once, but only advances the version
+     * when it is removed, within a garbage collection interval.
+     */
+    long getVersion(String type);
+
+    /**
+     * Returns a version that advances whenever the services returned by {@link #get(String, String)}
+     * change. An expired service is no longer returned at once, but only advances the version
+     * when it is removed, within a garbage collection interval.
+     */
+    long getVersion(String type, String pool);
+
+    /**
+     * Returns a time before which none of the services currently returned by {@link #get(String)}
+     * will expire.
+     */
+    Instant getExpiration(String type);
+
+    /**
+     * Returns a time before which none of the services currently returned by {@link #get(String, String)}
+     * will expire.
+     */
+    Instant getExpiration(String type, String pool);
+
+    /**
+     * Returns a future that completes once {@link #getVersion(String)} differs from the given
+     * version. The caller should cancel the future if it stops waiting.
+     */
+    ListenableFuture<?> watch(String type, long version);
+
+    /**
+     * Returns a future that completes once {@link #getVersion(String, String)} differs from the
+     * given version. The caller should cancel the future if it stops waiting.
+     */
+    ListenableFuture<?> watch(String type, String pool, long version);
+
+    /**
+     * Returns the services of the given type added or changed after the given version, which was
+     * returned by {@link #getVersion(String)}, and the ids of those removed. Returns null if the
+     * changes are no longer available.
+     */
+    @Nullable
+    ServiceChanges getChanges(String type, long version);
+
+    /**
+     * Returns the services of the given type and pool added or changed after the given version,
+     * which was returned by {@link #getVersion(String, String)}, and the ids of those removed.
+     * Returns null if the changes are no longer available.
+     */
+    @Nullable
+    ServiceChanges getChanges(String type, String pool, long version);
 }
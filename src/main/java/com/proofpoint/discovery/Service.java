@@ -18,6 +18,8 @@ package com.proofpoint.discovery;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
 import javax.annotation.concurrent.Immutable;
 import java.util.Map;
@@ -28,6 +30,12 @@ import static java.util.Objects.requireNonNull;
 @Immutable
 public class Service
 {
+    // announcements and replicated entries repeat the same few types and pools for many nodes,
+    // and the same properties for a service each time it is renewed or replicated, so services
+    // share canonical instances of them. Property names are already interned by Jackson.
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+    private static final Interner<Map<String, String>> PROPERTIES = Interners.newWeakInterner();
+
     private final Id<Service> id;
     private final Id<Node> nodeId;
     private final String type;
@@ -52,10 +60,11 @@ public class Service
 
         this.id = id;
         this.nodeId = nodeId;
-        this.type = type;
-        this.pool = pool;
+        this.type = STRINGS.intern(type);
+        this.pool = STRINGS.intern(pool);
         this.location = location;
-        this.properties = ImmutableMap.copyOf(properties);
+        // copyOf() does not copy a map that is already immutable, such as one already interned
+        this.properties = PROPERTIES.intern(ImmutableMap.copyOf(properties));
     }
 
     @JsonProperty
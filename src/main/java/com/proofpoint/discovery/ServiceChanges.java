@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.List;
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Services added or changed after some version, and the ids of services removed since.
+ */
+@AutoValue
+public abstract class ServiceChanges
+{
+    public static ServiceChanges serviceChanges(Iterable<Service> services, Iterable<Id<Service>> removed)
+    {
+        requireNonNull(services, "services is null");
+        requireNonNull(removed, "removed is null");
+        return new AutoValue_ServiceChanges(ImmutableList.copyOf(services), ImmutableSet.copyOf(removed));
+    }
+
+    public abstract List<Service> getServices();
+
+    public abstract Set<Id<Service>> getRemoved();
+}
@@ -15,34 +15,83 @@
  */
 package com.proofpoint.discovery;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
+import com.proofpoint.discovery.store.StoreConfig;
 import com.proofpoint.node.NodeInfo;
+import com.proofpoint.units.Duration;
 
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.proofpoint.concurrent.Threads.daemonThreadsNamed;
 import static com.proofpoint.discovery.Services.services;
+import static com.proofpoint.discovery.ServicesDelta.servicesDelta;
+import static com.proofpoint.discovery.ServicesDelta.servicesSnapshot;
+import static java.util.concurrent.Executors.newFixedThreadPool;
 
 @Path("/v1/service")
 public class ServiceResource
 {
+    static final String VERSION_HEADER = "X-Discovery-Version";
+
+    private static final int MAX_CACHED_RESPONSES = 10_000;
+    private static final Duration MAX_WATCH_TIMEOUT = new Duration(5, TimeUnit.MINUTES);
+
+    // clients honouring Cache-Control refresh several times within the shorter of the
+    // announcement max age and the replication interval, which is 10 seconds by default
+    private static final int CACHE_MAX_AGE_DIVISOR = 6;
+
+    private final Cache<CacheKey, CachedServices> responseCache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_RESPONSES)
+            .build();
     private final DynamicStore dynamicStore;
     private final ConfigStore configStore;
     private final ProxyStore proxyStore;
     private final NodeInfo node;
     private final InitializationTracker initializationTracker;
     private final String generalPoolMapTarget;
+    private final CacheControl cacheControl;
+    private final Supplier<Instant> timeSupplier;
+    private final ObjectMapper objectMapper;
+    private final ExecutorService watchExecutor = newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemonThreadsNamed("service-watch-%s"));
 
     @Inject
     public ServiceResource(DynamicStore dynamicStore, ConfigStore configStore, ProxyStore proxyStore, NodeInfo node,
-            InitializationTracker initializationTracker, DiscoveryConfig discoveryConfig)
+            InitializationTracker initializationTracker, DiscoveryConfig discoveryConfig, @ForDynamicStore StoreConfig storeConfig,
+            Supplier<Instant> timeSupplier, ObjectMapper objectMapper)
     {
         this.dynamicStore = dynamicStore;
         this.configStore = configStore;
@@ -50,38 +99,77 @@ public class ServiceResource
         this.node = node;
         this.initializationTracker = initializationTracker;
         generalPoolMapTarget = discoveryConfig.getGeneralPoolMapTarget();
+        this.timeSupplier = timeSupplier;
+        this.objectMapper = objectMapper;
+
+        long maxAgeMillis = Math.min(discoveryConfig.getMaxAge().toMillis(), storeConfig.getReplicationInterval().toMillis());
+        cacheControl = new CacheControl();
+        cacheControl.setMaxAge((int) TimeUnit.MILLISECONDS.toSeconds(maxAgeMillis / CACHE_MAX_AGE_DIVISOR));
     }
 
     @GET
     @Path("{type}/{pool}")
     @Produces(MediaType.APPLICATION_JSON)
-    public Services getServices(@PathParam("type") String type, @PathParam("pool") String pool)
+    public void getServices(@PathParam("type") String type,
+            @PathParam("pool") String pool,
+            @QueryParam("watch") Long watchVersion,
+            @QueryParam("timeout") @DefaultValue("30s") Duration timeout,
+            @QueryParam("since") Long sinceVersion,
+            @Context Request request,
+            @Suspended AsyncResponse asyncResponse)
     {
         ensureInitialized();
-        if ("general".equals(pool)) {
-            pool = generalPoolMapTarget;
+        String mappedPool = "general".equals(pool) ? generalPoolMapTarget : pool;
+
+        Stream<Service> proxyServices = proxyStore.get(type, mappedPool);
+        if (proxyServices != null) {
+            asyncResponse.resume(toResponse(request, encode(services(node.getEnvironment(), proxyServices))));
+            return;
         }
-        return services(node.getEnvironment(), firstNonNull(proxyStore.get(type, pool),
-                Stream.concat(configStore.get(type, pool), dynamicStore.get(type, pool))));
+
+        CacheKey key = new AutoValue_ServiceResource_CacheKey(type, mappedPool);
+        Supplier<Stream<Service>> servicesSupplier = () -> Stream.concat(configStore.get(type, mappedPool), dynamicStore.get(type, mappedPool));
+        respond(asyncResponse, watchVersion, timeout,
+                () -> getCachedServices(key, dynamicStore.getVersion(type, mappedPool), () -> dynamicStore.getExpiration(type, mappedPool), servicesSupplier),
+                version -> dynamicStore.watch(type, mappedPool, version),
+                services -> (sinceVersion == null) ? toResponse(request, services) :
+                        toDeltaResponse(services, dynamicStore.getChanges(type, mappedPool, sinceVersion), servicesSupplier));
     }
 
     @GET
     @Path("{type}")
     @Produces(MediaType.APPLICATION_JSON)
-    public Services getTypeServices(@PathParam("type") String type)
+    public void getTypeServices(@PathParam("type") String type,
+            @QueryParam("watch") Long watchVersion,
+            @QueryParam("timeout") @DefaultValue("30s") Duration timeout,
+            @QueryParam("since") Long sinceVersion,
+            @Context Request request,
+            @Suspended AsyncResponse asyncResponse)
     {
         ensureInitialized();
-        return services(node.getEnvironment(), firstNonNull(proxyStore.get(type),
-                Stream.concat(configStore.get(type), dynamicStore.get(type))));
+
+        Stream<Service> proxyServices = proxyStore.get(type);
+        if (proxyServices != null) {
+            asyncResponse.resume(toResponse(request, encode(services(node.getEnvironment(), proxyServices))));
+            return;
+        }
+
+        CacheKey key = new AutoValue_ServiceResource_CacheKey(type, null);
+        Supplier<Stream<Service>> servicesSupplier = () -> Stream.concat(configStore.get(type), dynamicStore.get(type));
+        respond(asyncResponse, watchVersion, timeout,
+                () -> getCachedServices(key, dynamicStore.getVersion(type), () -> dynamicStore.getExpiration(type), servicesSupplier),
+                version -> dynamicStore.watch(type, version),
+                services -> (sinceVersion == null) ? toResponse(request, services) :
+                        toDeltaResponse(services, dynamicStore.getChanges(type, sinceVersion), servicesSupplier));
     }
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Services getAllServices()
+    public Response getAllServices(@Context Request request)
     {
         ensureInitialized();
         Iterable<Service> services = Stream.concat(configStore.getAll(), dynamicStore.getAll()).collect(Collectors.toList());
-        return services(node.getEnvironment(), proxyStore.filterAndGetAll(services));
+        return toResponse(request, encode(services(node.getEnvironment(), proxyStore.filterAndGetAll(services))));
     }
 
     private void ensureInitialized()
@@ -90,4 +178,179 @@ public class ServiceResource
             throw new WebApplicationException(503);
         }
     }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        watchExecutor.shutdownNow();
+    }
+
+    /**
+     * Responds immediately unless the request watches the current version, in which case the
+     * response is held until the version changes, the timeout elapses or one of the services
+     * expires, whichever comes first. A timeout of under a millisecond responds immediately.
+     */
+    private void respond(AsyncResponse asyncResponse,
+            @Nullable Long watchVersion,
+            Duration timeout,
+            Supplier<CachedServices> servicesSupplier,
+            LongFunction<ListenableFuture<?>> watch,
+            Function<CachedServices, Response> responder)
+    {
+        CachedServices services = servicesSupplier.get();
+        // a zero timeout would mean no timeout at all
+        if (watchVersion == null || watchVersion != services.getVersion() || timeout.toMillis() <= 0) {
+            asyncResponse.resume(responder.apply(services));
+            return;
+        }
+
+        ListenableFuture<?> changed = watch.apply(watchVersion);
+        asyncResponse.register((CompletionCallback) throwable -> changed.cancel(false));
+
+        Instant now = timeSupplier.get();
+        long timeoutMillis = Math.min(timeout.toMillis(), MAX_WATCH_TIMEOUT.toMillis());
+        if (services.getExpiration().isBefore(now.plusMillis(timeoutMillis))) {
+            timeoutMillis = Math.max(1, ChronoUnit.MILLIS.between(now, services.getExpiration()));
+        }
+        asyncResponse.setTimeoutHandler(response -> watchExecutor.execute(() -> response.resume(responder.apply(servicesSupplier.get()))));
+        asyncResponse.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        changed.addListener(() -> asyncResponse.resume(responder.apply(servicesSupplier.get())), watchExecutor);
+    }
+
+    private Response toResponse(Request request, CachedServices services)
+    {
+        return toResponseBuilder(request, services.getEncoded())
+                .header(VERSION_HEADER, services.getVersion())
+                .build();
+    }
+
+    /**
+     * The version is that of the cached services, which was read before the changes, so a
+     * change made concurrently may be reported again in response to the next delta request.
+     */
+    private Response toDeltaResponse(CachedServices services, @Nullable ServiceChanges changes, Supplier<Stream<Service>> servicesSupplier)
+    {
+        ServicesDelta delta;
+        if (changes == null) {
+            delta = servicesSnapshot(node.getEnvironment(), servicesSupplier.get());
+        }
+        else {
+            delta = servicesDelta(node.getEnvironment(), changes);
+        }
+        return Response.ok(delta)
+                .header(VERSION_HEADER, services.getVersion())
+                .cacheControl(cacheControl)
+                .build();
+    }
+
+    private Response toResponse(Request request, EncodedServices encoded)
+    {
+        return toResponseBuilder(request, encoded).build();
+    }
+
+    private ResponseBuilder toResponseBuilder(Request request, EncodedServices encoded)
+    {
+        ResponseBuilder builder = request.evaluatePreconditions(encoded.getEntityTag());
+        if (builder == null) {
+            builder = Response.ok(encoded.getJson());
+        }
+        return builder.tag(encoded.getEntityTag())
+                .cacheControl(cacheControl);
+    }
+
+    /**
+     * Returns the encoded services, reusing the previous encoding if the store version is
+     * unchanged and none of the encoded services has since expired.
+     * <p>
+     * The version must be read before the services, so that a concurrent update results in
+     * the cached encoding being labelled with an older version rather than a newer one.
+     */
+    private CachedServices getCachedServices(CacheKey key, long version, Supplier<Instant> expiration, Supplier<Stream<Service>> services)
+    {
+        Instant now = timeSupplier.get();
+        CachedServices cached = responseCache.getIfPresent(key);
+        if (cached != null && cached.getVersion() == version && now.isBefore(cached.getExpiration())) {
+            return cached;
+        }
+
+        // compute the expiration before reading the services, so it can only be earlier than that of the services read
+        Instant newExpiration = expiration.get();
+        EncodedServices encoded = encode(services(node.getEnvironment(), services.get()));
+
+        cached = new CachedServices(version, newExpiration, encoded);
+        responseCache.put(key, cached);
+        return cached;
+    }
+
+    private EncodedServices encode(Services services)
+    {
+        try {
+            return new EncodedServices(objectMapper.writeValueAsBytes(services));
+        }
+        catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @AutoValue
+    abstract static class CacheKey
+    {
+        abstract String getType();
+
+        @Nullable
+        abstract String getPool();
+    }
+
+    private static class EncodedServices
+    {
+        private final byte[] json;
+        private final EntityTag entityTag;
+
+        EncodedServices(byte[] json)
+        {
+            this.json = json;
+            // derived from the content rather than the store version, so that all servers agree
+            entityTag = new EntityTag(Hashing.murmur3_128().hashBytes(json).toString());
+        }
+
+        byte[] getJson()
+        {
+            return json;
+        }
+
+        EntityTag getEntityTag()
+        {
+            return entityTag;
+        }
+    }
+
+    private static class CachedServices
+    {
+        private final long version;
+        private final Instant expiration;
+        private final EncodedServices encoded;
+
+        CachedServices(long version, Instant expiration, EncodedServices encoded)
+        {
+            this.version = version;
+            this.expiration = expiration;
+            this.encoded = encoded;
+        }
+
+        long getVersion()
+        {
+            return version;
+        }
+
+        Instant getExpiration()
+        {
+            return expiration;
+        }
+
+        EncodedServices getEncoded()
+        {
+            return encoded;
+        }
+    }
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+
+import java.util.Collection;
+import java.util.stream.Stream;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Response to a lookup for the changes since a version. If the changes are no longer
+ * available, holds a snapshot of all the services instead.
+ */
+@AutoValue
+public abstract class ServicesDelta
+{
+    public static ServicesDelta servicesDelta(String environment, ServiceChanges changes)
+    {
+        requireNonNull(changes, "changes is null");
+        return new AutoValue_ServicesDelta(environment, false, changes.getServices(), ImmutableList.copyOf(changes.getRemoved()));
+    }
+
+    public static ServicesDelta servicesSnapshot(String environment, Stream<Service> services)
+    {
+        requireNonNull(services, "services is null");
+        return new AutoValue_ServicesDelta(environment, true, services.collect(toImmutableList()), ImmutableList.of());
+    }
+
+    @JsonProperty
+    public abstract String getEnvironment();
+
+    @JsonProperty
+    public abstract boolean isSnapshot();
+
+    @JsonProperty
+    public abstract Collection<Service> getServices();
+
+    @JsonProperty
+    public abstract Collection<Id<Service>> getRemoved();
+}
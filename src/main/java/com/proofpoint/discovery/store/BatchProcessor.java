@@ -19,83 +19,127 @@ import com.google.common.base.Preconditions;
 import com.proofpoint.log.Logger;
 import com.proofpoint.reporting.Gauge;
 import com.proofpoint.stats.CounterStat;
+import com.proofpoint.units.Duration;
 import org.weakref.jmx.Nested;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
 
 import static com.proofpoint.concurrent.Threads.threadsNamed;
 import static java.util.Objects.requireNonNull;
-import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
+/**
+ * Queues entries and passes them to a handler in batches. Batches are processed by tasks
+ * submitted to an executor, which may be shared with other processors, with up to a given
+ * number of batches in flight at once. A processor holds no thread while its queue is empty.
+ * <p>
+ * A processor may be given a maximum linger time, for which it waits for a batch to fill
+ * before sending it. The wait is adapted to the time batches take to process and to how full
+ * the queue already is, so that a processor whose batches are quick, or whose queue holds a
+ * full batch, hardly waits.
+ * <p>
+ * A coalescing processor may also be given a reloader. An entry that overflows the queue is
+ * then not dropped: its key is set aside, and the current entry for the key is reloaded when
+ * there is room in a batch.
+ */
 public class BatchProcessor<T>
 {
     private static final Logger log = Logger.get(BatchProcessor.class);
 
     private final BatchHandler<T> handler;
     private final int maxBatchSize;
-    private final BlockingQueue<T> queue;
+    private final int queueSize;
+    private final int maxInFlightBatches;
+    private final long maxLingerNanos;
     private final String name;
+    private final Function<? super T, ?> keyFunction;
+    private final BinaryOperator<T> merger;
+    private final Function<Object, T> reloader;
+
+    // null if the processor runs its batches on an executor of its own
+    private final ScheduledExecutorService sharedExecutor;
 
-    private ExecutorService executor;
-    private volatile Future<?> future;
+    private final Object lock = new Object();
+    // without a key function every entry is queued under a key of its own
+    @GuardedBy("lock")
+    private final LinkedHashMap<Object, T> queue = new LinkedHashMap<>();
+    // keys of entries that overflowed the queue, oldest first
+    @GuardedBy("lock")
+    private final LinkedHashSet<Object> overflowKeys = new LinkedHashSet<>();
+    @GuardedBy("lock")
+    private int inFlightBatches;
+    @GuardedBy("lock")
+    private ScheduledExecutorService executor;
+    // a batch waiting to fill
+    @GuardedBy("lock")
+    private ScheduledFuture<?> lingering;
+    // moving average of the time taken to process a batch
+    @GuardedBy("lock")
+    private long batchNanos;
 
     private final CounterStat processedEntries = new CounterStat();
     private final CounterStat droppedEntries = new CounterStat();
+    private final CounterStat discardedEntries = new CounterStat();
+    private final CounterStat overflowedEntries = new CounterStat();
+    private final CounterStat coalescedEntries = new CounterStat();
     private final CounterStat errors = new CounterStat();
 
     public BatchProcessor(String name, BatchHandler<T> handler, int maxBatchSize, int queueSize)
     {
-        requireNonNull(name, "name is null");
-        requireNonNull(handler, "handler is null");
-        Preconditions.checkArgument(queueSize > 0, "queue size needs to be a positive integer");
-        Preconditions.checkArgument(maxBatchSize > 0, "max batch size needs to be a positive integer");
-
-        this.name = name;
-        this.handler = handler;
-        this.maxBatchSize = maxBatchSize;
-        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this(builder(name, handler, maxBatchSize, queueSize));
     }
 
-    @PostConstruct
-    public synchronized void start()
+    private BatchProcessor(Builder<T> builder)
     {
-        if (future == null) {
-            executor = newSingleThreadExecutor(threadsNamed("batch-processor-" + name));
-
-            future = executor.submit(() -> {
-                while (!Thread.interrupted()) {
-                    final List<T> entries = new ArrayList<>(maxBatchSize);
-
-                    try {
-                        T first = queue.take();
-                        entries.add(first);
-                        queue.drainTo(entries, maxBatchSize - 1);
+        Preconditions.checkArgument(builder.queueSize > 0, "queue size needs to be a positive integer");
+        Preconditions.checkArgument(builder.maxBatchSize > 0, "max batch size needs to be a positive integer");
+        Preconditions.checkArgument(builder.maxInFlightBatches > 0, "max in flight batches needs to be a positive integer");
+        Preconditions.checkArgument(builder.keyFunction != null || builder.reloader == null, "reloading requires a key function");
+        Preconditions.checkArgument(builder.sharedExecutor != null || builder.maxInFlightBatches == 1, "a processor with a thread of its own can only have one batch in flight");
 
-                        handler.processBatch(Collections.unmodifiableList(entries));
+        this.name = builder.name;
+        this.handler = builder.handler;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.queueSize = builder.queueSize;
+        this.keyFunction = builder.keyFunction;
+        this.merger = builder.merger;
+        this.reloader = builder.reloader;
+        this.sharedExecutor = builder.sharedExecutor;
+        this.maxInFlightBatches = builder.maxInFlightBatches;
+        maxLingerNanos = builder.maxLinger.roundTo(NANOSECONDS);
+    }
 
-                        processedEntries.add(entries.size());
-                    }
-                    catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                    catch (Throwable t) {
-                        errors.add(1);
-                        log.warn(t, "Error handling batch");
-                    }
+    /**
+     * Returns a builder for a processor with options beyond those of the constructor.
+     */
+    public static <T> Builder<T> builder(String name, BatchHandler<T> handler, int maxBatchSize, int queueSize)
+    {
+        return new Builder<>(name, handler, maxBatchSize, queueSize);
+    }
 
-                    // TODO: expose timestamp of last execution via jmx
-                }
-            });
-            log.info("Adding discovery peer %s", name);
+    @PostConstruct
+    public void start()
+    {
+        synchronized (lock) {
+            if (executor == null) {
+                executor = (sharedExecutor == null) ? newSingleThreadScheduledExecutor(threadsNamed("batch-processor-" + name)) : sharedExecutor;
+                log.info("Adding discovery peer %s", name);
+            }
         }
     }
 
@@ -111,6 +155,27 @@ public class BatchProcessor<T>
         return droppedEntries;
     }
 
+    /**
+     * Entries the handler discarded rather than processed.
+     */
+    @Nested
+    public CounterStat getDiscardedEntries()
+    {
+        return discardedEntries;
+    }
+
+    @Nested
+    public CounterStat getOverflowedEntries()
+    {
+        return overflowedEntries;
+    }
+
+    @Nested
+    public CounterStat getCoalescedEntries()
+    {
+        return coalescedEntries;
+    }
+
     @Nested
     public CounterStat getErrors()
     {
@@ -120,37 +185,263 @@ public class BatchProcessor<T>
     @Gauge
     public long getQueueSize()
     {
-        return queue.size();
+        synchronized (lock) {
+            return queue.size();
+        }
     }
 
-    @PreDestroy
-    public synchronized void stop()
+    @Gauge
+    public long getOverflowKeyCount()
     {
-        if (future != null) {
-            future.cancel(true);
-            executor.shutdownNow();
-            log.info("Removing discovery peer %s", name);
+        synchronized (lock) {
+            return overflowKeys.size();
+        }
+    }
 
-            future = null;
+    @PreDestroy
+    public void stop()
+    {
+        synchronized (lock) {
+            if (executor != null) {
+                if (lingering != null) {
+                    lingering.cancel(false);
+                    lingering = null;
+                }
+                if (sharedExecutor == null) {
+                    executor.shutdownNow();
+                }
+                executor = null;
+                queue.clear();
+                overflowKeys.clear();
+                log.info("Removing discovery peer %s", name);
+            }
         }
     }
 
     public void put(T entry)
     {
-        Preconditions.checkState(!future.isCancelled(), "Processor is not running");
         requireNonNull(entry, "entry is null");
+        Object key = (keyFunction == null) ? new Object() : requireNonNull(keyFunction.apply(entry), "key is null");
+
+        synchronized (lock) {
+            Preconditions.checkState(executor != null, "Processor is not running");
 
-        while (!queue.offer(entry)) {
-            // throw away oldest and try again
-            if (queue.poll() != null) {
-                droppedEntries.add(1);
+            T queued = queue.get(key);
+            if (queued != null) {
+                // replacing the value of a present key keeps its place in the queue
+                queue.put(key, merger.apply(queued, entry));
+                coalescedEntries.add(1);
+                return;
             }
+            if (queue.size() >= queueSize) {
+                Iterator<Object> oldest = queue.keySet().iterator();
+                Object oldestKey = oldest.next();
+                oldest.remove();
+                if (reloader == null) {
+                    // throw away oldest
+                    droppedEntries.add(1);
+                }
+                else {
+                    overflowKeys.add(oldestKey);
+                    overflowedEntries.add(1);
+                }
+            }
+            queue.put(key, entry);
+            // the entry is at least as new as any the key would be reloaded as
+            overflowKeys.remove(key);
+
+            if (lingering != null) {
+                // a full batch need not wait any longer
+                if (queue.size() >= maxBatchSize && lingering.cancel(false)) {
+                    lingering = null;
+                    submit(0);
+                }
+            }
+            else if (inFlightBatches < maxInFlightBatches) {
+                inFlightBatches++;
+                submit(getLingerNanos());
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private long getLingerNanos()
+    {
+        if (maxLingerNanos == 0 || queue.size() >= maxBatchSize) {
+            return 0;
+        }
+        // waiting a fraction of the time a batch takes adds little to the delay, and the
+        // fuller the queue the less there is left to wait for
+        long lingerNanos = Math.min(maxLingerNanos, batchNanos / 2);
+        return lingerNanos * (maxBatchSize - queue.size()) / maxBatchSize;
+    }
+
+    @GuardedBy("lock")
+    private void submit(long delayNanos)
+    {
+        try {
+            if (delayNanos == 0) {
+                executor.execute(() -> processBatch(false));
+            }
+            else {
+                lingering = executor.schedule(() -> processBatch(true), delayNanos, NANOSECONDS);
+            }
+        }
+        catch (RejectedExecutionException e) {
+            // the executor is shutting down
+            inFlightBatches--;
+        }
+    }
+
+    /**
+     * Processes one batch, then resubmits itself if more entries are queued, so that
+     * processors sharing an executor take turns.
+     */
+    private void processBatch(boolean lingered)
+    {
+        List<T> entries = new ArrayList<>(maxBatchSize);
+        List<Object> reloadKeys = new ArrayList<>();
+        synchronized (lock) {
+            if (lingered) {
+                lingering = null;
+            }
+            // overflowed keys are older than anything still queued
+            Iterator<Object> keys = overflowKeys.iterator();
+            while (keys.hasNext() && reloadKeys.size() < maxBatchSize) {
+                reloadKeys.add(keys.next());
+                keys.remove();
+            }
+            Iterator<T> iterator = queue.values().iterator();
+            while (iterator.hasNext() && reloadKeys.size() + entries.size() < maxBatchSize) {
+                entries.add(iterator.next());
+                iterator.remove();
+            }
+        }
+        if (!reloadKeys.isEmpty()) {
+            List<T> reloaded = new ArrayList<>(maxBatchSize);
+            for (Object key : reloadKeys) {
+                T entry = reloader.apply(key);
+                if (entry != null) {
+                    reloaded.add(entry);
+                }
+            }
+            reloaded.addAll(entries);
+            entries = reloaded;
+        }
+
+        long startNanos = System.nanoTime();
+        try {
+            if (!entries.isEmpty()) {
+                if (handler.processBatch(Collections.unmodifiableList(entries))) {
+                    processedEntries.add(entries.size());
+                }
+                else {
+                    discardedEntries.add(entries.size());
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Throwable t) {
+            errors.add(1);
+            log.warn(t, "Error handling batch");
+        }
+
+        synchronized (lock) {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            batchNanos = (batchNanos == 0) ? elapsedNanos : (batchNanos * 7 + elapsedNanos) / 8;
+
+            if (executor != null && (!queue.isEmpty() || !overflowKeys.isEmpty()) && lingering == null && !Thread.currentThread().isInterrupted()) {
+                submit(getLingerNanos());
+            }
+            else {
+                inFlightBatches--;
+            }
+        }
+    }
+
+    public static class Builder<T>
+    {
+        private final String name;
+        private final BatchHandler<T> handler;
+        private final int maxBatchSize;
+        private final int queueSize;
+        private Function<? super T, ?> keyFunction;
+        private BinaryOperator<T> merger;
+        private Function<Object, T> reloader;
+        private ScheduledExecutorService sharedExecutor;
+        private int maxInFlightBatches = 1;
+        private Duration maxLinger = new Duration(0, NANOSECONDS);
+
+        private Builder(String name, BatchHandler<T> handler, int maxBatchSize, int queueSize)
+        {
+            this.name = requireNonNull(name, "name is null");
+            this.handler = requireNonNull(handler, "handler is null");
+            this.maxBatchSize = maxBatchSize;
+            this.queueSize = queueSize;
+        }
+
+        /**
+         * Coalesces queued entries by key: an entry put while another with the same key is
+         * queued is merged into it, keeping its place in the queue. The queue size then bounds
+         * the number of distinct keys.
+         *
+         * @param merger given the queued entry and the entry being put, returns the entry to queue
+         */
+        public Builder<T> setCoalescing(Function<? super T, ?> keyFunction, BinaryOperator<T> merger)
+        {
+            this.keyFunction = requireNonNull(keyFunction, "keyFunction is null");
+            this.merger = requireNonNull(merger, "merger is null");
+            return this;
+        }
+
+        /**
+         * Sets aside the key of an entry that overflows a coalescing queue, rather than
+         * dropping the entry.
+         *
+         * @param reloader given the key of an entry that overflowed the queue, returns the
+         * current entry for the key, or null if there is none
+         */
+        public Builder<T> setReloader(Function<Object, T> reloader)
+        {
+            this.reloader = requireNonNull(reloader, "reloader is null");
+            return this;
+        }
+
+        /**
+         * Runs the batches on the given executor, rather than on a thread of the processor's own.
+         */
+        public Builder<T> setSharedExecutor(ScheduledExecutorService sharedExecutor)
+        {
+            this.sharedExecutor = requireNonNull(sharedExecutor, "sharedExecutor is null");
+            return this;
+        }
+
+        public Builder<T> setMaxInFlightBatches(int maxInFlightBatches)
+        {
+            this.maxInFlightBatches = maxInFlightBatches;
+            return this;
+        }
+
+        public Builder<T> setMaxLinger(Duration maxLinger)
+        {
+            this.maxLinger = requireNonNull(maxLinger, "maxLinger is null");
+            return this;
+        }
+
+        public BatchProcessor<T> build()
+        {
+            return new BatchProcessor<>(this);
         }
     }
 
     public interface BatchHandler<T>
     {
-        void processBatch(Collection<T> entries)
+        /**
+         * Returns false if the entries were discarded rather than processed.
+         */
+        boolean processBatch(Collection<T> entries)
                 throws Exception;
     }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Hash tree over the key space of a store, so that two stores can find the entries in which
+ * they differ by exchanging digests rather than entries.
+ * <p>
+ * Keys are hashed into {@link #BUCKETS} buckets, the leaves of a two-level tree in which the
+ * root has {@link #FANOUT} children of {@link #FANOUT} leaves each. The digest of a bucket is
+ * the XOR of a hash of the key and timestamp of each of its entries, so it is maintained
+ * incrementally as entries change, and the digest of an inner node is the XOR of those of
+ * its leaves.
+ * <p>
+ * Updates for a given key must be serialized by the caller.
+ */
+class DigestTree
+{
+    static final int FANOUT = 64;
+    static final int BUCKETS = FANOUT * FANOUT;
+
+    private static final HashFunction BUCKET_FUNCTION = Hashing.murmur3_32();
+    private static final HashFunction ENTRY_FUNCTION = Hashing.murmur3_128();
+
+    private final AtomicLongArray digests = new AtomicLongArray(BUCKETS);
+    private final List<Set<NodeKey>> keys;
+
+    DigestTree()
+    {
+        ImmutableList.Builder<Set<NodeKey>> builder = ImmutableList.builder();
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            builder.add(ConcurrentHashMap.newKeySet());
+        }
+        keys = builder.build();
+    }
+
+    void update(NodeKey key, @Nullable Entry oldEntry, @Nullable Entry newEntry)
+    {
+        int bucket = bucket(key);
+
+        long delta = 0;
+        if (oldEntry != null) {
+            delta ^= hash(oldEntry);
+        }
+        if (newEntry != null) {
+            delta ^= hash(newEntry);
+        }
+        if (delta != 0) {
+            digests.accumulateAndGet(bucket, delta, (digest, change) -> digest ^ change);
+        }
+
+        if (oldEntry == null && newEntry != null) {
+            keys.get(bucket).add(key);
+        }
+        else if (oldEntry != null && newEntry == null) {
+            keys.get(bucket).remove(key);
+        }
+    }
+
+    /**
+     * Returns the digests of the children of the root if node is null, otherwise of the
+     * leaves of the given child of the root.
+     */
+    long[] getDigests(@Nullable Integer node)
+    {
+        long[] result = new long[FANOUT];
+        if (node == null) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                result[bucket / FANOUT] ^= digests.get(bucket);
+            }
+        }
+        else {
+            checkArgument(node >= 0 && node < FANOUT, "node must be between 0 and %s", FANOUT - 1);
+            for (int leaf = 0; leaf < FANOUT; leaf++) {
+                result[leaf] = digests.get(node * FANOUT + leaf);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the keys in the given bucket.
+     */
+    Collection<NodeKey> getKeys(int bucket)
+    {
+        checkArgument(bucket >= 0 && bucket < BUCKETS, "bucket must be between 0 and %s", BUCKETS - 1);
+        return keys.get(bucket);
+    }
+
+    static int bucket(int node, int leaf)
+    {
+        return node * FANOUT + leaf;
+    }
+
+    private static int bucket(NodeKey key)
+    {
+        // hashed by the bytes of the key, so that peers agree on the buckets
+        return Math.floorMod(BUCKET_FUNCTION.hashBytes(key.getBytes()).asInt(), BUCKETS);
+    }
+
+    private static long hash(Entry entry)
+    {
+        return ENTRY_FUNCTION.newHasher()
+                .putBytes(entry.getKey())
+                .putLong(entry.getTimestamp())
+                .hash()
+                .asLong();
+    }
+}
@@ -15,12 +15,15 @@
  */
 package com.proofpoint.discovery.store;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.proofpoint.discovery.DiscoveryConfig;
 import com.proofpoint.discovery.DynamicAnnouncement;
+import com.proofpoint.discovery.DynamicServiceAnnouncement;
 import com.proofpoint.discovery.DynamicStore;
 import com.proofpoint.discovery.Id;
 import com.proofpoint.discovery.Node;
 import com.proofpoint.discovery.Service;
+import com.proofpoint.discovery.ServiceChanges;
 import com.proofpoint.reporting.Gauge;
 import com.proofpoint.units.Duration;
 import org.weakref.jmx.Managed;
@@ -29,19 +32,27 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.proofpoint.concurrent.Threads.daemonThreadsNamed;
 import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
 import static com.proofpoint.discovery.Service.matchesPool;
 import static com.proofpoint.discovery.Service.matchesType;
+import static com.proofpoint.discovery.ServiceChanges.serviceChanges;
 import static com.proofpoint.discovery.store.Entry.entry;
 import static java.util.Objects.requireNonNull;
 import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
@@ -60,6 +71,8 @@ public class DistributedStore
     private final Duration garbageCollectionInterval;
     private final Duration maxAge;
 
+    private final ServiceWatcher watcher = new ServiceWatcher();
+
     private final ScheduledExecutorService garbageCollector;
     private final AtomicLong lastGcTimestamp = new AtomicLong();
 
@@ -84,6 +97,7 @@ public class DistributedStore
         maxAge = requireNonNull(discoveryConfig, "discoveryConfig is null").getMaxAge();
 
         garbageCollector = newSingleThreadScheduledExecutor(daemonThreadsNamed("distributed-store-gc-" + name));
+        localStore.addChangeListener(watcher);
     }
 
     @PostConstruct
@@ -108,10 +122,10 @@ public class DistributedStore
     @Managed
     public void removeExpiredEntries()
     {
-        for (Entry entry : localStore.getAll()) {
-            if (isExpired(entry)) {
-                localStore.delete(entry.getKey(), entry.getTimestamp());
-            }
+        // the local store indexes entries by expiration, so this only visits expired entries
+        long now = timeSupplier.get().toEpochMilli();
+        for (ExpiryIndex.Deadline deadline : localStore.getExpired(now, tombstoneMaxAge.toMillis())) {
+            localStore.delete(deadline.getKey(), deadline.getTimestamp());
         }
 
         lastGcTimestamp.set(System.currentTimeMillis());
@@ -120,13 +134,26 @@ public class DistributedStore
     @Gauge
     public long getActiveEntryCount()
     {
-        long count = 0;
-        for (Entry entry : localStore.getAll()) {
-            if (!isExpired(entry) && entry.getValue() != null) {
-                ++count;
-            }
-        }
-        return count;
+        // expired entries are counted until they are removed, within a garbage collection interval
+        return localStore.getStats().getEntryCount();
+    }
+
+    @Gauge
+    public long getTombstoneCount()
+    {
+        return localStore.getStats().getTombstoneCount();
+    }
+
+    @Gauge
+    public long getApproximateSizeInBytes()
+    {
+        return localStore.getStats().getApproximateSizeInBytes();
+    }
+
+    @Managed
+    public Map<String, Long> getServiceCountsByType()
+    {
+        return localStore.getStats().getServiceCounts();
     }
 
     private boolean isExpired(Entry entry)
@@ -151,13 +178,57 @@ public class DistributedStore
 
         long now = timeSupplier.get().toEpochMilli();
 
-        List<Service> services = announcement.getServiceAnnouncements().stream()
-                .map(toServiceWith(nodeId, announcement.getLocation(), announcement.getPool()))
-                .collect(Collectors.toList());
-        Entry entry = entry(nodeId.getBytes(), services, now, maxAge.toMillis(), announcement.getAnnouncerAddr());
+        // looked up without formatting the node id, whose bytes are shared with the existing entry
+        NodeKey nodeKey = NodeKey.of(nodeId);
+        Entry existing = localStore.get(nodeKey);
+        byte[] key = existing == null ? nodeKey.getBytes() : existing.getKey();
+
+        // most announcements are heartbeats, which only need the timestamp advanced
+        List<Service> services;
+        boolean renewal = false;
+        if (existing != null && existing.getValue() != null && isSameAnnouncement(existing.getValue(), nodeId, announcement)) {
+            services = existing.getValue();
+            renewal = Objects.equals(existing.getAnnouncer(), announcement.getAnnouncerAddr());
+        }
+        else {
+            services = announcement.getServiceAnnouncements().stream()
+                    .map(toServiceWith(nodeId, announcement.getLocation(), announcement.getPool()))
+                    .collect(toImmutableList());
+        }
+        // a renewal shares the content hash the touch carries
+        Entry entry = renewal ? existing.renew(now, maxAge.toMillis())
+                : entry(key, services, now, maxAge.toMillis(), announcement.getAnnouncerAddr());
 
         localStore.put(entry);
-        remoteStore.put(entry);
+        if (renewal) {
+            remoteStore.touch(entry);
+        }
+        else {
+            remoteStore.put(entry);
+        }
+    }
+
+    private static boolean isSameAnnouncement(List<Service> services, Id<Node> nodeId, DynamicAnnouncement announcement)
+    {
+        Set<DynamicServiceAnnouncement> serviceAnnouncements = announcement.getServiceAnnouncements();
+        if (services.size() != serviceAnnouncements.size()) {
+            return false;
+        }
+
+        // announcements for a node list their services in the same order, so a positional comparison suffices
+        Iterator<Service> iterator = services.iterator();
+        for (DynamicServiceAnnouncement serviceAnnouncement : serviceAnnouncements) {
+            Service service = iterator.next();
+            if (!service.getId().equals(serviceAnnouncement.getId()) ||
+                    !nodeId.equals(service.getNodeId()) ||
+                    !service.getType().equals(serviceAnnouncement.getType()) ||
+                    !service.getPool().equals(announcement.getPool()) ||
+                    !service.getLocation().equals(announcement.getLocation()) ||
+                    !service.getProperties().equals(serviceAnnouncement.getProperties())) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -167,7 +238,7 @@ public class DistributedStore
 
         long now = timeSupplier.get().toEpochMilli();
 
-        Entry entry = entry(nodeId.getBytes(), (List<Service>) null, now, null, null);
+        Entry entry = entry(NodeKey.of(nodeId).getBytes(), (List<Service>) null, now, null, null);
 
         localStore.put(entry);
         remoteStore.put(entry);
@@ -176,24 +247,80 @@ public class DistributedStore
     @Override
     public Stream<Service> get(String type)
     {
-        return getAll()
-                .filter(matchesType(type));
+        return localStore.getByType(type).entrySet().stream()
+                .flatMap(pool -> getLive(pool.getValue(), matchesType(type).and(matchesPool(pool.getKey()))));
     }
 
     @Override
     public Stream<Service> get(String type, String pool)
     {
-        return getAll()
-                .filter(matchesType(type).and(matchesPool(pool)));
+        return getLive(localStore.getByTypeAndPool(type, pool), matchesType(type).and(matchesPool(pool)));
     }
 
     @Override
     public String getAnnouncer(Id<Node> nodeId)
     {
-        Entry entry = localStore.get(nodeId.getBytes());
+        Entry entry = localStore.get(NodeKey.of(nodeId));
         return entry == null ? null : entry.getAnnouncer();
     }
 
+    @Override
+    public long getVersion(String type)
+    {
+        return localStore.getVersion(type);
+    }
+
+    @Override
+    public long getVersion(String type, String pool)
+    {
+        return localStore.getVersion(type, pool);
+    }
+
+    @Override
+    public Instant getExpiration(String type)
+    {
+        return getExpiration(localStore.getByType(type).values().stream()
+                .flatMap(Collection::stream));
+    }
+
+    @Override
+    public Instant getExpiration(String type, String pool)
+    {
+        return getExpiration(localStore.getByTypeAndPool(type, pool).stream());
+    }
+
+    @Override
+    public ListenableFuture<?> watch(String type, long version)
+    {
+        return watcher.watch(type, null, version, () -> localStore.getVersion(type));
+    }
+
+    @Override
+    public ListenableFuture<?> watch(String type, String pool, long version)
+    {
+        return watcher.watch(type, pool, version, () -> localStore.getVersion(type, pool));
+    }
+
+    @Override
+    public ServiceChanges getChanges(String type, long version)
+    {
+        ServiceIndex.Changes changes = localStore.getChanges(type, null, version);
+        if (changes == null) {
+            return null;
+        }
+        return toServiceChanges(changes, localStore.getByType(type).values().stream().flatMap(Collection::stream), matchesType(type));
+    }
+
+    @Override
+    public ServiceChanges getChanges(String type, String pool, long version)
+    {
+        ServiceIndex.Changes changes = localStore.getChanges(type, pool, version);
+        if (changes == null) {
+            return null;
+        }
+        return toServiceChanges(changes, localStore.getByTypeAndPool(type, pool).stream(), matchesType(type).and(matchesPool(pool)));
+    }
+
     @Override
     public Stream<Service> getAll()
     {
@@ -202,6 +329,62 @@ public class DistributedStore
                 .flatMap(entry -> entry.getValue().stream());
     }
 
+    private Stream<Service> getLive(Collection<Entry> entries, Predicate<Service> predicate)
+    {
+        return entries.stream()
+                .filter(expired().negate())
+                .flatMap(entry -> entry.getValue().stream())
+                .filter(predicate);
+    }
+
+    /**
+     * Expiration only advances the version once the expired entry is removed, so services that
+     * expired after the version was reached but are still indexed are also reported as removed.
+     */
+    private ServiceChanges toServiceChanges(ServiceIndex.Changes changes, Stream<Entry> indexedEntries, Predicate<Service> predicate)
+    {
+        Set<Id<Service>> removed = new HashSet<>(changes.getRemoved());
+        indexedEntries
+                .filter(expired())
+                .filter(entry -> entry.getTimestamp() + entry.getMaxAgeInMs() > changes.getSinceMillis())
+                .flatMap(entry -> entry.getValue().stream())
+                .filter(predicate)
+                .forEach(service -> removed.add(service.getId()));
+
+        List<Service> services = new ArrayList<>();
+        for (NodeKey key : changes.getKeys()) {
+            Entry entry = localStore.get(key);
+            if (entry == null || entry.getValue() == null) {
+                continue;
+            }
+            if (isExpired(entry)) {
+                entry.getValue().stream()
+                        .filter(predicate)
+                        .forEach(service -> removed.add(service.getId()));
+            }
+            else {
+                entry.getValue().stream()
+                        .filter(predicate)
+                        .forEach(services::add);
+            }
+        }
+
+        for (Service service : services) {
+            removed.remove(service.getId());
+        }
+        return serviceChanges(services, removed);
+    }
+
+    private Instant getExpiration(Stream<Entry> entries)
+    {
+        return entries
+                .filter(entry -> entry.getMaxAgeInMs() != null)
+                .filter(expired().negate())
+                .map(entry -> Instant.ofEpochMilli(entry.getTimestamp() + entry.getMaxAgeInMs()))
+                .min(Instant::compareTo)
+                .orElse(Instant.MAX);
+    }
+
     private Predicate<Entry> expired()
     {
         return this::isExpired;
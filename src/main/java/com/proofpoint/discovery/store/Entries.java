@@ -17,11 +17,18 @@ package com.proofpoint.discovery.store;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.proofpoint.discovery.Service;
 
+import javax.annotation.Nullable;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 
 import static com.proofpoint.discovery.store.Entry.entry;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 class Entries
 {
@@ -48,4 +55,71 @@ class Entries
         }
         return entry;
     }
+
+    /**
+     * Compares service lists by content. {@link Service#equals} only compares ids.
+     */
+    static boolean sameServices(List<Service> a, List<Service> b)
+    {
+        if (a == b) {
+            return true;
+        }
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            Service serviceA = a.get(i);
+            Service serviceB = b.get(i);
+            if (serviceA == serviceB) {
+                continue;
+            }
+            // services share interned types, pools and property maps, so these are mostly reference comparisons
+            if (!serviceA.getId().equals(serviceB.getId()) ||
+                    !Objects.equals(serviceA.getNodeId(), serviceB.getNodeId()) ||
+                    !serviceA.getType().equals(serviceB.getType()) ||
+                    !serviceA.getPool().equals(serviceB.getPool()) ||
+                    !serviceA.getLocation().equals(serviceB.getLocation()) ||
+                    (serviceA.getProperties() != serviceB.getProperties() && !serviceA.getProperties().equals(serviceB.getProperties()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hashes the content of an entry: its services and announcer, but not its timestamp or
+     * maximum age. Entries that are {@link #sameServices} with the same announcer hash equally.
+     */
+    static long contentHash(Entry entry)
+    {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        putString(hasher, entry.getAnnouncer());
+        List<Service> services = entry.getValue();
+        if (services != null) {
+            hasher.putInt(services.size());
+            for (Service service : services) {
+                putString(hasher, service.getId().toString());
+                putString(hasher, service.getNodeId() == null ? null : service.getNodeId().toString());
+                putString(hasher, service.getType());
+                putString(hasher, service.getPool());
+                putString(hasher, service.getLocation());
+                hasher.putInt(service.getProperties().size());
+                for (Map.Entry<String, String> property : new TreeMap<>(service.getProperties()).entrySet()) {
+                    putString(hasher, property.getKey());
+                    putString(hasher, property.getValue());
+                }
+            }
+        }
+        return hasher.hash().asLong();
+    }
+
+    private static void putString(Hasher hasher, @Nullable String value)
+    {
+        if (value == null) {
+            hasher.putInt(-1);
+        }
+        else {
+            hasher.putInt(value.length()).putString(value, UTF_8);
+        }
+    }
 }
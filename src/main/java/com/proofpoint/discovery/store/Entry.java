@@ -33,6 +33,10 @@ public abstract class Entry
 {
     private static final JsonCodec<List<Service>> SERVICE_LIST_CODEC = JsonCodec.listJsonCodec(Service.class);
 
+    // computed when first needed unless carried over from the entry this one renews
+    @Nullable
+    private volatile Long contentHash;
+
     @JsonCreator
     public static Entry entry(@JsonProperty("key") byte[] key,
             @Nullable @JsonProperty("value") byte[] value,
@@ -84,6 +88,29 @@ public abstract class Entry
     @JsonProperty
     public abstract String getAnnouncer();
 
+    /**
+     * Returns the {@link Entries#contentHash content hash} of the entry, computing it at most once.
+     */
+    long getContentHash()
+    {
+        Long hash = contentHash;
+        if (hash == null) {
+            hash = Entries.contentHash(this);
+            contentHash = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns a copy of the entry with a new timestamp and maximum age, which shares its content hash.
+     */
+    Entry renew(long timestamp, @Nullable Long maxAgeInMs)
+    {
+        Entry entry = entry(getKey(), getValue(), timestamp, maxAgeInMs, getAnnouncer());
+        entry.contentHash = getContentHash();
+        return entry;
+    }
+
     @Override
     public String toString()
     {
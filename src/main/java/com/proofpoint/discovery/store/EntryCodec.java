@@ -0,0 +1,369 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileConstants;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.google.common.collect.ImmutableList;
+import com.proofpoint.discovery.Service;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static com.proofpoint.discovery.store.Entry.entry;
+
+/**
+ * Version 2 of the replication wire format: a Smile array of entries with their services
+ * nested natively, rather than as embedded JSON documents as in the {@link Entry} format.
+ * <p>
+ * The key of an entry is written as its bytes, or if compact keys are requested and the key
+ * is a node id, as the 16 byte binary form of the id. Compact keys must not be written until
+ * every reader understands them.
+ */
+final class EntryCodec
+{
+    static final String MEDIA_TYPE = "application/x-discovery-entries-v2+smile";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper(new SmileFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE));
+    private static final TypeReference<List<Service>> SERVICE_LIST_TYPE = new TypeReference<List<Service>>() {};
+
+    // an entry encoded on its own must not refer back to names or values earlier in the
+    // stream, so that encoded entries can be concatenated into any request
+    private static final ObjectMapper SEGMENT_MAPPER = new ObjectMapper(new SmileFactory()
+            .configure(SmileGenerator.Feature.WRITE_HEADER, false)
+            .configure(SmileGenerator.Feature.CHECK_SHARED_NAMES, false)
+            .configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, false)
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET));
+    private static final byte[] SEGMENTS_PREFIX = segmentsPrefix();
+
+    private EntryCodec()
+    {
+    }
+
+    static byte[] toBytes(Iterable<Entry> entries)
+    {
+        return toBytes(entries, false);
+    }
+
+    static byte[] toBytes(Iterable<Entry> entries, boolean compactKeys)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writeEntries(entries, out, compactKeys);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Unable to encode entries", e);
+        }
+        return out.toByteArray();
+    }
+
+    static void writeEntries(Iterable<Entry> entries, OutputStream out)
+            throws IOException
+    {
+        writeEntries(entries, out, false);
+    }
+
+    static void writeEntries(Iterable<Entry> entries, OutputStream out, boolean compactKeys)
+            throws IOException
+    {
+        try (JsonGenerator generator = MAPPER.getFactory().createGenerator(out)) {
+            generator.writeStartArray();
+            for (Entry entry : entries) {
+                writeEntry(generator, entry, compactKeys);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    /**
+     * Encodes an entry as a segment for {@link #concatenate}.
+     */
+    static byte[] encode(Entry entry, boolean compactKeys)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = SEGMENT_MAPPER.getFactory().createGenerator(out)) {
+            writeEntry(generator, entry, compactKeys);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Unable to encode entry", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes a touch as a segment for {@link #concatenate}.
+     */
+    static byte[] encode(Touch touch)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = SEGMENT_MAPPER.getFactory().createGenerator(out)) {
+            generator.writeObject(touch);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Unable to encode touch", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the encoding of the entries, or touches, whose segments are given.
+     */
+    static byte[] concatenate(Collection<byte[]> segments)
+    {
+        int length = SEGMENTS_PREFIX.length + 1;
+        for (byte[] segment : segments) {
+            length += segment.length;
+        }
+
+        byte[] bytes = new byte[length];
+        System.arraycopy(SEGMENTS_PREFIX, 0, bytes, 0, SEGMENTS_PREFIX.length);
+        int position = SEGMENTS_PREFIX.length;
+        for (byte[] segment : segments) {
+            System.arraycopy(segment, 0, bytes, position, segment.length);
+            position += segment.length;
+        }
+        bytes[position] = SmileConstants.TOKEN_LITERAL_END_ARRAY;
+        return bytes;
+    }
+
+    /**
+     * Writes the start of an encoding of entries to which segments from {@link #encode} can
+     * be appended as they become available, for {@link #readSegments}.
+     */
+    static void writeSegmentsPrefix(OutputStream out)
+            throws IOException
+    {
+        out.write(SEGMENTS_PREFIX);
+    }
+
+    /**
+     * Passes each entry of an encoding written by {@link #writeSegmentsPrefix} and appended
+     * segments to the consumer as soon as it is read. If the last segment is incomplete, the
+     * entries before it are passed to the consumer before an {@link EOFException} is thrown.
+     */
+    static void readSegments(InputStream in, Consumer<Entry> consumer)
+            throws IOException
+    {
+        AtomicBoolean exhausted = new AtomicBoolean();
+        InputStream watched = new FilterInputStream(in)
+        {
+            @Override
+            public int read()
+                    throws IOException
+            {
+                return exhausted(super.read());
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length)
+                    throws IOException
+            {
+                return exhausted(super.read(buffer, offset, length));
+            }
+
+            private int exhausted(int result)
+            {
+                if (result < 0) {
+                    exhausted.set(true);
+                }
+                return result;
+            }
+        };
+
+        InputStream terminated = new SequenceInputStream(watched, new ByteArrayInputStream(new byte[] {SmileConstants.TOKEN_LITERAL_END_ARRAY}));
+        try {
+            readEntries(terminated, (key, timestamp) -> true, consumer);
+        }
+        catch (IOException e) {
+            // the parser only reads past the end of the segments when the last one is cut short
+            if (exhausted.get()) {
+                EOFException eofException = new EOFException("Last segment is incomplete");
+                eofException.initCause(e);
+                throw eofException;
+            }
+            throw e;
+        }
+    }
+
+    static List<Entry> readEntries(InputStream in)
+            throws IOException
+    {
+        return readEntries(in, (key, timestamp) -> true);
+    }
+
+    static List<Entry> readEntries(InputStream in, EntryFilter filter)
+            throws IOException
+    {
+        List<Entry> entries = new ArrayList<>();
+        readEntries(in, filter, entries::add);
+        return entries;
+    }
+
+    /**
+     * Passes each entry accepted by the filter to the consumer as soon as it is read. The
+     * services of an entry are skipped rather than decoded if it is rejected by the time they
+     * are reached.
+     */
+    static void readEntries(InputStream in, EntryFilter filter, Consumer<Entry> consumer)
+            throws IOException
+    {
+        try (JsonParser parser = MAPPER.getFactory().createParser(in)) {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                return;
+            }
+            if (token != JsonToken.START_ARRAY) {
+                throw new JsonParseException(parser, "Expected an array of entries");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                Entry entry = readEntry(parser, filter);
+                if (entry != null) {
+                    consumer.accept(entry);
+                }
+            }
+            if (parser.currentToken() != JsonToken.END_ARRAY) {
+                throw new JsonParseException(parser, "Expected an entry");
+            }
+        }
+    }
+
+    private static void writeEntry(JsonGenerator generator, Entry entry, boolean compactKeys)
+            throws IOException
+    {
+        generator.writeStartObject();
+        NodeKey key = compactKeys ? NodeKey.fromBytes(entry.getKey()) : null;
+        if (key != null && key.isNodeId()) {
+            generator.writeBinaryField("nodeId", key.toUuidBytes());
+        }
+        else {
+            generator.writeBinaryField("key", entry.getKey());
+        }
+        generator.writeNumberField("timestamp", entry.getTimestamp());
+        if (entry.getMaxAgeInMs() != null) {
+            generator.writeNumberField("maxAgeInMs", entry.getMaxAgeInMs());
+        }
+        if (entry.getAnnouncer() != null) {
+            generator.writeStringField("announcer", entry.getAnnouncer());
+        }
+        if (entry.getValue() != null) {
+            generator.writeFieldName("services");
+            generator.writeObject(entry.getValue());
+        }
+        generator.writeEndObject();
+    }
+
+    private static byte[] segmentsPrefix()
+    {
+        // the header, declaring that there are no back references, and the start of the array
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = SEGMENT_MAPPER.getFactory().createGenerator(out)) {
+            ((SmileGenerator) generator).writeHeader();
+            generator.writeStartArray();
+            generator.flush();
+            return out.toByteArray();
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Nullable
+    private static Entry readEntry(JsonParser parser, EntryFilter filter)
+            throws IOException
+    {
+        byte[] key = null;
+        Long timestamp = null;
+        Long maxAgeInMs = null;
+        String announcer = null;
+        List<Service> services = null;
+        boolean rejected = false;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (field) {
+                case "key":
+                    key = parser.getBinaryValue();
+                    break;
+                case "nodeId":
+                    byte[] nodeId = parser.getBinaryValue();
+                    if (nodeId.length != 16) {
+                        throw new JsonParseException(parser, "Entry node id is not 16 bytes");
+                    }
+                    key = NodeKey.fromUuidBytes(nodeId).getBytes();
+                    break;
+                case "timestamp":
+                    timestamp = parser.getLongValue();
+                    break;
+                case "maxAgeInMs":
+                    maxAgeInMs = parser.getLongValue();
+                    break;
+                case "announcer":
+                    announcer = parser.getText();
+                    break;
+                case "services":
+                    // the services are written last, so the key and timestamp are normally known here
+                    if (key != null && timestamp != null && !filter.accept(key, timestamp)) {
+                        rejected = true;
+                        parser.skipChildren();
+                    }
+                    else {
+                        services = ImmutableList.copyOf(parser.<List<Service>>readValueAs(SERVICE_LIST_TYPE));
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+
+        if (key == null || timestamp == null) {
+            throw new JsonParseException(parser, "Entry is missing its key or timestamp");
+        }
+        if (rejected || !filter.accept(key, timestamp)) {
+            return null;
+        }
+        return entry(key, services, timestamp, maxAgeInMs, announcer);
+    }
+
+    interface EntryFilter
+    {
+        boolean accept(byte[] key, long timestamp);
+    }
+}
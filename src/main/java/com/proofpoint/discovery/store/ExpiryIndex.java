@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Index of store entries by the time they expire, so that expired entries can be found
+ * without scanning the store.
+ * <p>
+ * Entries with a max age are ordered by their timestamp plus max age. Tombstones, whose max
+ * age is given by the reader, are also ordered by their timestamp alone. Each entry is
+ * indexed once under each ordering, so the index grows with the number of keys rather than
+ * with the number of updates.
+ * <p>
+ * Updates for a given key must be serialized by the caller.
+ */
+class ExpiryIndex
+{
+    private final NavigableSet<Deadline> deadlines = new ConcurrentSkipListSet<>();
+    private final NavigableSet<Deadline> tombstones = new ConcurrentSkipListSet<>();
+
+    void update(NodeKey key, @Nullable Entry oldEntry, @Nullable Entry newEntry)
+    {
+        if (oldEntry != null) {
+            if (oldEntry.getMaxAgeInMs() != null) {
+                deadlines.remove(new Deadline(oldEntry.getTimestamp() + oldEntry.getMaxAgeInMs(), key, oldEntry.getTimestamp()));
+            }
+            if (oldEntry.getValue() == null) {
+                tombstones.remove(new Deadline(oldEntry.getTimestamp(), key, oldEntry.getTimestamp()));
+            }
+        }
+        if (newEntry != null) {
+            if (newEntry.getMaxAgeInMs() != null) {
+                deadlines.add(new Deadline(newEntry.getTimestamp() + newEntry.getMaxAgeInMs(), key, newEntry.getTimestamp()));
+            }
+            if (newEntry.getValue() == null) {
+                tombstones.add(new Deadline(newEntry.getTimestamp(), key, newEntry.getTimestamp()));
+            }
+        }
+    }
+
+    /**
+     * Returns the entries that had expired at the given time, in order of expiration. An
+     * entry may be returned twice.
+     */
+    List<Deadline> getExpired(long nowMillis, long tombstoneMaxAgeMillis)
+    {
+        ImmutableList.Builder<Deadline> builder = ImmutableList.builder();
+        addExpired(builder, deadlines, nowMillis);
+        addExpired(builder, tombstones, nowMillis - tombstoneMaxAgeMillis);
+        return builder.build();
+    }
+
+    private static void addExpired(ImmutableList.Builder<Deadline> builder, NavigableSet<Deadline> deadlines, long beforeMillis)
+    {
+        // an entry expires once its age exceeds its max age
+        for (Deadline deadline : deadlines) {
+            if (deadline.millis >= beforeMillis) {
+                return;
+            }
+            builder.add(deadline);
+        }
+    }
+
+    static class Deadline
+            implements Comparable<Deadline>
+    {
+        private final long millis;
+        private final NodeKey key;
+        private final long timestamp;
+
+        private Deadline(long millis, NodeKey key, long timestamp)
+        {
+            this.millis = millis;
+            this.key = key;
+            this.timestamp = timestamp;
+        }
+
+        NodeKey getKey()
+        {
+            return key;
+        }
+
+        /**
+         * Returns the timestamp of the entry, which is not deleted if it has since been updated.
+         */
+        long getTimestamp()
+        {
+            return timestamp;
+        }
+
+        @Override
+        public int compareTo(Deadline other)
+        {
+            int result = Long.compare(millis, other.millis);
+            if (result == 0) {
+                result = key.compareTo(other.key);
+            }
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Deadline other = (Deadline) obj;
+            return millis == other.millis && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * Long.hashCode(millis) + key.hashCode();
+        }
+    }
+}
@@ -15,8 +15,12 @@
  */
 package com.proofpoint.discovery.store;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.reflect.TypeToken;
 import com.proofpoint.discovery.DiscoveryConfig;
 import com.proofpoint.discovery.DiscoveryConfig.ReplicationMode;
@@ -34,7 +38,10 @@ import com.proofpoint.reporting.ReportExporter;
 import com.proofpoint.units.Duration;
 import org.weakref.jmx.Managed;
 
+import javax.annotation.Nullable;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -54,10 +61,13 @@ import java.util.stream.Collectors;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static com.proofpoint.concurrent.Threads.daemonThreadsNamed;
 import static com.proofpoint.discovery.store.Entry.entry;
 import static com.proofpoint.http.client.SmileBodyGenerator.smileBodyGenerator;
+import static com.proofpoint.http.client.StaticBodyGenerator.createStaticBodyGenerator;
 import static com.proofpoint.json.JsonCodec.jsonCodec;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newScheduledThreadPool;
 
 class HttpRemoteStore
         implements RemoteStore
@@ -67,14 +77,18 @@ class HttpRemoteStore
 
     private final int maxBatchSize;
     private final int queueSize;
+    private final int maxInFlightBatches;
+    private final Duration maxLinger;
     private final Duration updateInterval;
 
-    private final ConcurrentMap<String, BatchProcessor<Entry>> processors = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, BatchProcessor<Update>> processors = new ConcurrentHashMap<>();
     private final String name;
     private final ServiceSelector selector;
+    private final InMemoryStore localStore;
     private final HttpClient httpClient;
     private final ReportExporter reportExporter;
     private final ScheduledExecutorService executor;
+    private final ScheduledExecutorService senderExecutor;
 
     private Future<?> future;
 
@@ -82,10 +96,12 @@ class HttpRemoteStore
     private final Predicate<ServiceDescriptor> ourNodeIdPredicate;
     private final String generalPoolMapTarget;
     private final ReplicationMode generalPoolLegacyReplicationMode;
+    private final boolean compactKeys;
 
     public HttpRemoteStore(String name,
             final NodeInfo node,
             ServiceSelector selector,
+            InMemoryStore localStore,
             StoreConfig config,
             HttpClient httpClient,
             ReportExporter reportExporter,
@@ -95,12 +111,14 @@ class HttpRemoteStore
         requireNonNull(name, "name is null");
         requireNonNull(node, "node is null");
         requireNonNull(selector, "selector is null");
+        requireNonNull(localStore, "localStore is null");
         requireNonNull(httpClient, "httpClient is null");
         requireNonNull(config, "config is null");
         requireNonNull(reportExporter, "reportExporter is null");
 
         this.name = name;
         this.selector = selector;
+        this.localStore = localStore;
         this.httpClient = httpClient;
         this.reportExporter = reportExporter;
         // note: this *must* be single threaded for the shutdown logic to work correctly
@@ -108,6 +126,11 @@ class HttpRemoteStore
 
         maxBatchSize = config.getMaxBatchSize();
         queueSize = config.getQueueSize();
+        maxInFlightBatches = config.getMaxInFlightBatches();
+        maxLinger = config.getMaxLinger();
+        compactKeys = config.isCompactKeysEnabled();
+        // the peers' batch processors take turns on a shared pool, rather than each holding a thread
+        senderExecutor = newScheduledThreadPool(config.getSenderThreads(), daemonThreadsNamed("http-remote-store-" + name + "-sender-%s"));
         updateInterval = config.getRemoteUpdateInterval();
         ourNodeIdPredicate = input -> node.getNodeId().equals(input.getNodeId());
         generalPoolMapTarget = discoveryConfig.getGeneralPoolMapTarget();
@@ -141,14 +164,17 @@ class HttpRemoteStore
             }
             catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while stopping replication of store " + name, e);
             }
             catch (ExecutionException e) {
                 throw new RuntimeException(e);
             }
+            finally {
+                executor.shutdownNow();
+                senderExecutor.shutdownNow();
 
-            executor.shutdownNow();
-
-            future = null;
+                future = null;
+            }
         }
     }
 
@@ -157,9 +183,9 @@ class HttpRemoteStore
         Set<String> hostPorts = descriptors.stream().map(getHostPortFunction()).collect(toImmutableSet());
 
         // remove old ones
-        Iterator<Map.Entry<String, BatchProcessor<Entry>>> iterator = processors.entrySet().iterator();
+        Iterator<Map.Entry<String, BatchProcessor<Update>>> iterator = processors.entrySet().iterator();
         while (iterator.hasNext()) {
-            Map.Entry<String, BatchProcessor<Entry>> entry = iterator.next();
+            Map.Entry<String, BatchProcessor<Update>> entry = iterator.next();
 
             if (!hostPorts.contains(entry.getKey())) {
                 iterator.remove();
@@ -175,10 +201,16 @@ class HttpRemoteStore
 
         for (ServiceDescriptor descriptor : newDescriptors) {
             String hostPort = getHostPort(descriptor);
-            BatchProcessor<Entry> processor = new BatchProcessor<>(hostPort,
-                    new MyBatchHandler(name, descriptor, httpClient),
+            BatchProcessor<Update> processor = BatchProcessor.builder(hostPort,
+                    new MyBatchHandler(name, descriptor, httpClient, localStore, maxBatchSize, compactKeys, this::toPeerEntry),
                     maxBatchSize,
-                    queueSize);
+                    queueSize)
+                    .setCoalescing(update -> update.shared.key, Update::merge)
+                    .setReloader(this::reload)
+                    .setSharedExecutor(senderExecutor)
+                    .setMaxInFlightBatches(maxInFlightBatches)
+                    .setMaxLinger(maxLinger)
+                    .build();
 
             processor.start();
             processors.put(hostPort, processor);
@@ -206,6 +238,28 @@ class HttpRemoteStore
 
     @Override
     public void put(Entry entry)
+    {
+        Update update = new Update(new SharedEntry(toPeerEntry(entry)), false);
+        for (BatchProcessor<Update> processor : processors.values()) {
+            processor.put(update);
+        }
+    }
+
+    @Override
+    public void touch(Entry entry)
+    {
+        if (generalPoolLegacyReplicationMode == ReplicationMode.PHASE_ONE) {
+            // peers would hash the content with its pools transformed
+            put(entry);
+            return;
+        }
+        Update update = new Update(new SharedEntry(entry), true);
+        for (BatchProcessor<Update> processor : processors.values()) {
+            processor.put(update);
+        }
+    }
+
+    private Entry toPeerEntry(Entry entry)
     {
         if (generalPoolLegacyReplicationMode == ReplicationMode.PHASE_ONE) {
             List<Service> services = entry.getValue();
@@ -221,63 +275,425 @@ class HttpRemoteStore
                 entry = entry(entry.getKey(), services, entry.getTimestamp(), entry.getMaxAgeInMs(), entry.getAnnouncer());
             }
         }
-        for (BatchProcessor<Entry> processor : processors.values()) {
-            processor.put(entry);
+        return entry;
+    }
+
+    /**
+     * Returns an update of the current entry for a key whose update overflowed a peer's queue.
+     */
+    @Nullable
+    private Update reload(Object key)
+    {
+        Entry entry = localStore.get((NodeKey) key);
+        if (entry == null) {
+            return null;
+        }
+        return new Update(new SharedEntry(toPeerEntry(entry)), false);
+    }
+
+    /**
+     * An entry being replicated, shared by the queues of all peers so that it is encoded at
+     * most once, in full or as a touch, however many peers it is sent to.
+     */
+    private static class SharedEntry
+    {
+        private final Entry entry;
+        // the key by which the queue of every peer coalesces updates
+        private final NodeKey key;
+        private byte[] encoded;
+        private byte[] encodedTouch;
+
+        SharedEntry(Entry entry)
+        {
+            this.entry = entry;
+            key = NodeKey.fromBytes(entry.getKey());
+        }
+
+        // peers are all sent keys in the same form, so a single encoding is retained
+        synchronized byte[] getEncoded(boolean compactKeys)
+        {
+            if (encoded == null) {
+                encoded = EntryCodec.encode(entry, compactKeys);
+            }
+            return encoded;
+        }
+
+        synchronized byte[] getEncodedTouch()
+        {
+            if (encodedTouch == null) {
+                encodedTouch = EntryCodec.encode(Touch.touchOf(entry));
+            }
+            return encodedTouch;
+        }
+    }
+
+    private static class Update
+    {
+        private final SharedEntry shared;
+        private final boolean touch;
+
+        Update(SharedEntry shared, boolean touch)
+        {
+            this.shared = shared;
+            this.touch = touch;
+        }
+
+        Entry getEntry()
+        {
+            return shared.entry;
+        }
+
+        /**
+         * Merges an update into one queued for the same key, so that the peer is sent only the
+         * latest entry.
+         */
+        static Update merge(Update queued, Update update)
+        {
+            if (update.getEntry().getTimestamp() < queued.getEntry().getTimestamp()) {
+                return queued;
+            }
+            if (update.touch && !queued.touch) {
+                // a touch does not carry the services, and the peer may not have been sent them yet
+                return new Update(update.shared, false);
+            }
+            return update;
         }
     }
 
     private static class MyBatchHandler
-            implements BatchProcessor.BatchHandler<Entry>
+            implements BatchProcessor.BatchHandler<Update>
     {
         private static final JsonCodec<Collection<Entry>> ENTRIES_CODEC = jsonCodec(new TypeToken<Collection<Entry>>()
         {
         });
 
         private final URI uri;
+        private final URI touchUri;
+        private final String hostPort;
         private final HttpClient httpClient;
+        private final InMemoryStore localStore;
+        private final int maxBatchSize;
+        private final boolean compactKeys;
+        private final Function<Entry, Entry> peerTransform;
+        private final ObjectMapper mapper = new ObjectMapper(new SmileFactory());
+
+        private final PeerFeature touches = new PeerFeature();
+        private final PeerFeature encodedEntries = new PeerFeature();
+        private final PeerHealth health = new PeerHealth();
 
-        MyBatchHandler(String name, ServiceDescriptor descriptor, HttpClient httpClient)
+        MyBatchHandler(String name, ServiceDescriptor descriptor, HttpClient httpClient, InMemoryStore localStore, int maxBatchSize, boolean compactKeys, Function<Entry, Entry> peerTransform)
         {
             this.httpClient = httpClient;
+            this.localStore = localStore;
+            this.maxBatchSize = maxBatchSize;
+            this.compactKeys = compactKeys;
+            this.peerTransform = peerTransform;
+            hostPort = getHostPort(descriptor);
 
             // TODO: build URI from resource class
             uri = URI.create(descriptor.getProperties().get("http") + "/v1/store/" + name);
+            touchUri = URI.create(uri + "/touch");
         }
 
         @Override
-        public void processBatch(final Collection<Entry> entries)
+        public boolean processBatch(Collection<Update> updates)
                 throws Exception
         {
-            final Request request = Request.Builder.preparePost()
+            long oldestTimestamp = updates.stream().mapToLong(update -> update.getEntry().getTimestamp()).min().orElse(Long.MAX_VALUE);
+            if (!health.shouldSend(oldestTimestamp)) {
+                return false;
+            }
+
+            try {
+                send(updates);
+            }
+            catch (Exception e) {
+                if (health.failed(oldestTimestamp)) {
+                    log.warn("Backing off from replicating to %s", hostPort);
+                }
+                throw e;
+            }
+
+            long resyncSince = health.succeeded();
+            if (resyncSince != Long.MAX_VALUE) {
+                log.info("Resuming replication to %s", hostPort);
+                catchUp(resyncSince);
+            }
+            return true;
+        }
+
+        /**
+         * Sends the entries that changed while the peer was not being sent updates.
+         */
+        private void catchUp(long since)
+                throws Exception
+        {
+            try {
+                byte[] afterKey = null;
+                while (true) {
+                    List<Entry> page = localStore.getPage(afterKey, maxBatchSize, entry -> entry.getTimestamp() >= since);
+                    if (page.isEmpty()) {
+                        return;
+                    }
+                    sendEntries(page.stream()
+                            .map(entry -> new SharedEntry(peerTransform.apply(entry)))
+                            .collect(toImmutableList()));
+                    afterKey = page.get(page.size() - 1).getKey();
+                }
+            }
+            catch (Exception e) {
+                health.failed(since);
+                throw e;
+            }
+        }
+
+        private void send(Collection<Update> updates)
+                throws Exception
+        {
+            boolean sendTouches = touches.isEnabled();
+
+            List<SharedEntry> entries = new ArrayList<>();
+            List<SharedEntry> touched = new ArrayList<>();
+            for (Update update : updates) {
+                if (update.touch && sendTouches) {
+                    touched.add(update.shared);
+                }
+                else {
+                    entries.add(update.shared);
+                }
+            }
+
+            // full entries go first, so that touches of the same keys can match them
+            if (!entries.isEmpty()) {
+                sendEntries(entries);
+            }
+            if (!touched.isEmpty()) {
+                List<SharedEntry> unmatched = sendTouches(touched);
+                if (!unmatched.isEmpty()) {
+                    sendEntries(unmatched);
+                }
+            }
+        }
+
+        private void sendEntries(List<SharedEntry> entries)
+                throws Exception
+        {
+            if (encodedEntries.isEnabled()) {
+                List<byte[]> segments = entries.stream().map(shared -> shared.getEncoded(compactKeys)).collect(toImmutableList());
+                Request request = Request.Builder.preparePost()
+                        .setUri(uri)
+                        .setHeader("Content-Type", EntryCodec.MEDIA_TYPE)
+                        .setBodySource(createStaticBodyGenerator(EntryCodec.concatenate(segments)))
+                        .build();
+                if (sendEntries(request)) {
+                    encodedEntries.enable();
+                    return;
+                }
+                encodedEntries.disable();
+            }
+
+            Request request = Request.Builder.preparePost()
                     .setUri(uri)
                     .setHeader("Content-Type", "application/x-jackson-smile")
-                    .setBodySource(smileBodyGenerator(ENTRIES_CODEC, entries))
+                    .setBodySource(smileBodyGenerator(ENTRIES_CODEC, entries.stream().map(shared -> shared.entry).collect(toImmutableList())))
+                    .build();
+            sendEntries(request);
+        }
+
+        /**
+         * Returns false if the peer does not support the request's media type.
+         */
+        private boolean sendEntries(Request request)
+                throws Exception
+        {
+            try {
+                return httpClient.execute(request, new ResponseHandler<Boolean, Exception>()
+                {
+                    @Override
+                    public Boolean handleException(Request request, Exception exception)
+                            throws Exception
+                    {
+                        throw exception;
+                    }
+
+                    @Override
+                    public Boolean handle(Request request, Response response)
+                            throws Exception
+                    {
+                        if (response.getStatusCode() == 415) {
+                            // peer predates the encoded format
+                            return false;
+                        }
+                        if (response.getStatusCode() >= 300) {
+                            throw new Exception("Remote server returned " + response.getStatusCode() + " status code");
+                        }
+                        return true;
+                    }
+                });
+            }
+            catch (InterruptedException e) {
+                // not a sign that the peer accepted the batch
+                Thread.currentThread().interrupt();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the touched entries the peer needs in full.
+         */
+        private List<SharedEntry> sendTouches(List<SharedEntry> touched)
+                throws Exception
+        {
+            final Request request = Request.Builder.preparePost()
+                    .setUri(touchUri)
+                    .setHeader("Content-Type", "application/x-jackson-smile")
+                    .setHeader("Accept", "application/x-jackson-smile")
+                    .setBodySource(createStaticBodyGenerator(EntryCodec.concatenate(touched.stream().map(SharedEntry::getEncodedTouch).collect(toImmutableList()))))
                     .build();
 
+            Set<ByteBuffer> unmatchedKeys;
             try {
-                httpClient.execute(request, new ResponseHandler<Void, Exception>()
+                unmatchedKeys = httpClient.execute(request, new ResponseHandler<Set<ByteBuffer>, Exception>()
                 {
                     @Override
-                    public Void handleException(Request request, Exception exception)
+                    public Set<ByteBuffer> handleException(Request request, Exception exception)
                             throws Exception
                     {
                         throw exception;
                     }
 
                     @Override
-                    public Void handle(Request request, Response response)
+                    public Set<ByteBuffer> handle(Request request, Response response)
                             throws Exception
                     {
+                        if (response.getStatusCode() == 404) {
+                            // peer predates touches
+                            return null;
+                        }
                         if (response.getStatusCode() >= 300) {
                             throw new Exception("Remote server returned " + response.getStatusCode() + " status code");
                         }
-                        return null;
+                        if (response.getStatusCode() == 204) {
+                            return ImmutableSet.of();
+                        }
+                        List<byte[]> keys = mapper.readValue(response.getInputStream(), new TypeReference<List<byte[]>>() {});
+                        return keys.stream().map(ByteBuffer::wrap).collect(toImmutableSet());
                     }
                 });
             }
             catch (InterruptedException e) {
+                // not a sign that the peer matched the touches
                 Thread.currentThread().interrupt();
+                throw e;
+            }
+
+            if (unmatchedKeys == null) {
+                touches.disable();
+                return touched;
+            }
+            touches.enable();
+            return touched.stream()
+                    .filter(shared -> unmatchedKeys.contains(ByteBuffer.wrap(shared.entry.getKey())))
+                    .collect(toImmutableList());
+        }
+    }
+
+    /**
+     * Health of a peer, as seen by its sender. After a failure, updates for the peer are
+     * discarded until a backoff interval passes, noting the oldest of them so that the peer can
+     * be caught up. A batch is then sent as a probe. If it succeeds the peer is healthy again,
+     * and otherwise the backoff interval is doubled, up to a maximum.
+     */
+    private static class PeerHealth
+    {
+        private static final long MIN_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+        private static final long MAX_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+        private enum State
+        {
+            HEALTHY, BACKING_OFF, PROBING
+        }
+
+        private State state = State.HEALTHY;
+        private long backoffNanos;
+        private long retryNanos;
+        // oldest timestamp of the updates discarded, or Long.MAX_VALUE if none were
+        private long resyncSince = Long.MAX_VALUE;
+
+        /**
+         * Returns whether updates should be sent. If not, they are noted as discarded.
+         */
+        synchronized boolean shouldSend(long oldestTimestamp)
+        {
+            if (state == State.HEALTHY) {
+                return true;
+            }
+            if (state == State.BACKING_OFF && System.nanoTime() - retryNanos >= 0) {
+                state = State.PROBING;
+                return true;
+            }
+            resyncSince = Math.min(resyncSince, oldestTimestamp);
+            return false;
+        }
+
+        /**
+         * Returns whether the peer was healthy before the failure.
+         */
+        synchronized boolean failed(long oldestTimestamp)
+        {
+            boolean wasHealthy = state == State.HEALTHY;
+            resyncSince = Math.min(resyncSince, oldestTimestamp);
+            if (state != State.BACKING_OFF) {
+                backoffNanos = (backoffNanos == 0) ? MIN_BACKOFF_NANOS : Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+                retryNanos = System.nanoTime() + backoffNanos;
+                state = State.BACKING_OFF;
+            }
+            return wasHealthy;
+        }
+
+        /**
+         * Returns the oldest timestamp of the updates discarded since the peer was last
+         * healthy, or Long.MAX_VALUE if none need to be caught up.
+         */
+        synchronized long succeeded()
+        {
+            if (state != State.PROBING) {
+                // a batch sent before a concurrent failure says nothing about the peer's recovery
+                return Long.MAX_VALUE;
             }
+            state = State.HEALTHY;
+            backoffNanos = 0;
+            long since = resyncSince;
+            resyncSince = Long.MAX_VALUE;
+            return since;
+        }
+    }
+
+    /**
+     * Tracks whether a peer supports a newer replication request. A peer found not to is
+     * sent the older request until a retry interval passes, in case it has been upgraded.
+     */
+    private static class PeerFeature
+    {
+        private static final long RETRY_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+        private volatile boolean unsupported;
+        private volatile long retryNanos;
+
+        boolean isEnabled()
+        {
+            return !unsupported || System.nanoTime() - retryNanos > 0;
+        }
+
+        void enable()
+        {
+            unsupported = false;
+        }
+
+        void disable()
+        {
+            unsupported = true;
+            retryNanos = System.nanoTime() + RETRY_INTERVAL_NANOS;
         }
     }
 }
@@ -16,31 +16,56 @@
 package com.proofpoint.discovery.store;
 
 import com.proofpoint.discovery.DiscoveryConfig;
+import com.proofpoint.discovery.Service;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
-import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.proofpoint.discovery.store.Entry.entry;
 import static java.util.Objects.requireNonNull;
 
 public class InMemoryStore
 {
-    private final ConcurrentMap<ByteBuffer, Entry> map = new ConcurrentHashMap<>();
+    private final ConcurrentMap<NodeKey, Entry> map = new ConcurrentHashMap<>();
+    // the keys of the map in order, maintained under the map's per-key lock, for paging
+    private final NavigableSet<NodeKey> keys = new ConcurrentSkipListSet<>();
+    private final ServiceIndex index;
+    private final DigestTree digests = new DigestTree();
+    private final ExpiryIndex expiry = new ExpiryIndex();
+    private final StoreStats stats = new StoreStats();
     private final long maxAgeInMs;
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+    private final List<PutListener> putListeners = new CopyOnWriteArrayList<>();
     private UpdateListener updateListener = null;
 
     @Inject
-    public InMemoryStore(DiscoveryConfig config)
+    public InMemoryStore(DiscoveryConfig config, Supplier<Instant> timeSupplier)
     {
         maxAgeInMs = config.getMaxAge().toMillis();
+        index = new ServiceIndex(timeSupplier);
     }
 
     InMemoryStore()
     {
         maxAgeInMs = Long.MAX_VALUE;
+        index = new ServiceIndex(Instant::now);
     }
 
     public void setUpdateListener(UpdateListener updateListener)
@@ -48,6 +73,16 @@ public class InMemoryStore
         this.updateListener = updateListener;
     }
 
+    void addChangeListener(ChangeListener changeListener)
+    {
+        changeListeners.add(requireNonNull(changeListener, "changeListener is null"));
+    }
+
+    void addPutListener(PutListener putListener)
+    {
+        putListeners.add(requireNonNull(putListener, "putListener is null"));
+    }
+
     public boolean put(Entry entry)
     {
         if (maxAgeInMs != Long.MAX_VALUE && entry.getMaxAgeInMs() == null) {
@@ -58,53 +93,147 @@ public class InMemoryStore
                     entry.getAnnouncer());
         }
 
-        ByteBuffer key = ByteBuffer.wrap(entry.getKey());
+        Entry newEntry = entry;
+        return update(entry.getKey(), old -> newEntry);
+    }
 
-        while (true) {
-            Entry old = map.putIfAbsent(key, entry);
-            if (old == null) {
-                return true;
-            }
+    /**
+     * Advances the timestamp of the entry for the touched key, provided its content still has
+     * the touched hash. Returns false if there is no such entry, in which case the full entry
+     * is needed.
+     */
+    boolean touch(Touch touch)
+    {
+        requireNonNull(touch, "touch is null");
 
-            entry = resolve(old, entry);
-            if (entry == old) {
-                return false;
+        AtomicBoolean matched = new AtomicBoolean();
+        update(touch.getKey(), old -> {
+            if (old == null || old.getValue() == null || old.getContentHash() != touch.getContentHash()) {
+                return null;
             }
+            matched.set(true);
+            return old.renew(touch.getTimestamp(), touch.getMaxAgeInMs() == null ? old.getMaxAgeInMs() : touch.getMaxAgeInMs());
+        });
+        return matched.get();
+    }
 
-            if (map.replace(key, old, entry)) {
-                if (updateListener != null) {
-                    updateListener.notifyUpdate(old, entry);
-                }
-                return true;
+    /**
+     * Puts the entry proposed given the current entry for the key, if any, and if it is newer.
+     * A null proposal leaves the current entry in place.
+     */
+    private boolean update(byte[] key, Function<Entry, Entry> proposal)
+    {
+        AtomicReference<Entry> oldEntry = new AtomicReference<>();
+        AtomicReference<Entry> newEntry = new AtomicReference<>();
+        AtomicBoolean changed = new AtomicBoolean();
+
+        // compute() serializes updates to the same key, which keeps the index consistent with the map
+        Entry winner = map.compute(NodeKey.fromBytes(key), (nodeKey, old) -> {
+            Entry proposed = proposal.apply(old);
+            if (proposed == null) {
+                return old;
+            }
+            oldEntry.set(old);
+            newEntry.set(proposed);
+            Entry resolved = (old == null) ? proposed : resolve(old, proposed);
+            if (resolved != old) {
+                changed.set(index.update(nodeKey, old, resolved));
+                digests.update(nodeKey, old, resolved);
+                expiry.update(nodeKey, old, resolved);
+                stats.update(old, resolved);
+            }
+            if (old == null) {
+                keys.add(nodeKey);
             }
+            return resolved;
+        });
+
+        if (winner == null || winner != newEntry.get()) {
+            return false;
+        }
+
+        Entry old = oldEntry.get();
+        if (old != null && updateListener != null) {
+            updateListener.notifyUpdate(old, winner);
+        }
+        if (changed.get()) {
+            notifyChange(old, winner);
+        }
+        for (PutListener putListener : putListeners) {
+            putListener.notifyPut(winner);
         }
+        return true;
     }
 
     public Entry get(byte[] key)
     {
         requireNonNull(key, "key is null");
 
-        return map.get(ByteBuffer.wrap(key));
+        return map.get(NodeKey.fromBytes(key));
+    }
+
+    Entry get(NodeKey key)
+    {
+        requireNonNull(key, "key is null");
+
+        return map.get(key);
+    }
+
+    /**
+     * Returns whether an entry with the given key and timestamp would replace the current
+     * entry, so that replicated entries which would not can be discarded before decoding.
+     */
+    boolean wouldReplace(byte[] key, long timestamp)
+    {
+        Entry current = map.get(NodeKey.fromBytes(key));
+        return current == null || timestamp > current.getTimestamp();
     }
 
     public boolean delete(byte[] key, long timestamp)
     {
         requireNonNull(key, "key is null");
 
-        ByteBuffer wrappedKey = ByteBuffer.wrap(key);
+        return delete(NodeKey.fromBytes(key), timestamp);
+    }
 
-        boolean done = false;
-        while (!done) {
-            Entry old = map.get(wrappedKey);
+    boolean delete(NodeKey key, long timestamp)
+    {
+        requireNonNull(key, "key is null");
 
-            if (old == null || isNewer(old, timestamp)) {
-                return false;
-            }
-            else {
-                done = map.remove(wrappedKey, old);
+        AtomicReference<Entry> deleted = new AtomicReference<>();
+        AtomicBoolean changed = new AtomicBoolean();
+        map.computeIfPresent(key, (nodeKey, old) -> {
+            if (isNewer(old, timestamp)) {
+                return old;
             }
+            changed.set(index.update(nodeKey, old, null));
+            digests.update(nodeKey, old, null);
+            expiry.update(nodeKey, old, null);
+            stats.update(old, null);
+            keys.remove(nodeKey);
+            deleted.set(old);
+            return null;
+        });
+
+        if (changed.get()) {
+            notifyChange(deleted.get(), null);
         }
-        return true;
+        return deleted.get() != null;
+    }
+
+    /**
+     * Returns the entries that had expired at the given time, tombstones expiring after the
+     * given max age. An entry updated since it was returned is not deleted by
+     * {@link #delete(NodeKey, long)} with the returned timestamp.
+     */
+    List<ExpiryIndex.Deadline> getExpired(long nowMillis, long tombstoneMaxAgeMillis)
+    {
+        return expiry.getExpired(nowMillis, tombstoneMaxAgeMillis);
+    }
+
+    StoreStats getStats()
+    {
+        return stats;
     }
 
     public Collection<Entry> getAll()
@@ -112,6 +241,131 @@ public class InMemoryStore
         return map.values();
     }
 
+    /**
+     * Returns up to limit entries accepted by the filter in key order, starting after the
+     * given key if not null.
+     */
+    List<Entry> getPage(@Nullable byte[] afterKey, int limit, Predicate<Entry> filter)
+    {
+        checkArgument(limit > 0, "limit must be positive");
+
+        NavigableSet<NodeKey> pageKeys = (afterKey == null) ? keys : keys.tailSet(NodeKey.fromBytes(afterKey), false);
+        List<Entry> page = new ArrayList<>();
+        for (NodeKey key : pageKeys) {
+            Entry entry = map.get(key);
+            if (entry != null && filter.test(entry)) {
+                page.add(entry);
+                if (page.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Returns the digests of the children of the root of the store's {@link DigestTree} if
+     * node is null, otherwise of the leaves of the given child of the root.
+     */
+    long[] getDigests(@Nullable Integer node)
+    {
+        return digests.getDigests(node);
+    }
+
+    /**
+     * Returns the entries in the given buckets of the store's {@link DigestTree}.
+     */
+    List<Entry> getBuckets(Collection<Integer> buckets)
+    {
+        List<Entry> entries = new ArrayList<>();
+        for (int bucket : buckets) {
+            for (NodeKey key : digests.getKeys(bucket)) {
+                Entry entry = map.get(key);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the entries containing services of the given type, grouped by pool.
+     * Tombstones are excluded; expired entries are not.
+     */
+    public Map<String, Collection<Entry>> getByType(String type)
+    {
+        requireNonNull(type, "type is null");
+
+        return index.get(type);
+    }
+
+    /**
+     * Returns the entries containing services of the given type and pool.
+     * Tombstones are excluded; expired entries are not.
+     */
+    public Collection<Entry> getByTypeAndPool(String type, String pool)
+    {
+        requireNonNull(type, "type is null");
+        requireNonNull(pool, "pool is null");
+
+        return index.get(type, pool);
+    }
+
+    /**
+     * Returns a version that advances after every change to the services in the store.
+     */
+    public long getVersion()
+    {
+        return index.getVersion();
+    }
+
+    /**
+     * Returns a version that advances after every change to the services of the given type.
+     */
+    public long getVersion(String type)
+    {
+        requireNonNull(type, "type is null");
+
+        return index.getVersion(type);
+    }
+
+    /**
+     * Returns a version that advances after every change to the services of the given type and pool.
+     */
+    public long getVersion(String type, String pool)
+    {
+        requireNonNull(type, "type is null");
+        requireNonNull(pool, "pool is null");
+
+        return index.getVersion(type, pool);
+    }
+
+    /**
+     * Returns the changes to the services of the given type, and pool if not null, after the
+     * given version, or null if they are not all retained.
+     */
+    @Nullable
+    ServiceIndex.Changes getChanges(String type, @Nullable String pool, long version)
+    {
+        requireNonNull(type, "type is null");
+
+        return index.getChanges(type, pool, version);
+    }
+
+    private void notifyChange(@Nullable Entry oldEntry, @Nullable Entry newEntry)
+    {
+        for (ChangeListener changeListener : changeListeners) {
+            for (Entry entry : Arrays.asList(oldEntry, newEntry)) {
+                if (entry != null && entry.getValue() != null) {
+                    for (Service service : entry.getValue()) {
+                        changeListener.notifyChange(service.getType(), service.getPool());
+                    }
+                }
+            }
+        }
+    }
+
     private static Entry resolve(Entry a, Entry b)
     {
         if (isNewer(b, a.getTimestamp())) {
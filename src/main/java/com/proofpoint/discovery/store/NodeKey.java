@@ -0,0 +1,226 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.proofpoint.discovery.Id;
+import com.proofpoint.discovery.Node;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Key of a store entry, as held by the store. Entries are keyed by the UTF-8 bytes of the
+ * string form of a node id, and such a key is held as the two longs of the id, so that it is
+ * hashed and compared without touching the bytes and looked up by id without formatting the
+ * id as a string. Keys of any other form, including ids not in canonical lower case form, are
+ * held as their bytes.
+ */
+final class NodeKey
+        implements Comparable<NodeKey>
+{
+    private static final int UUID_STRING_LENGTH = 36;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(US_ASCII);
+
+    private final boolean nodeId;
+    private final long mostSignificantBits;
+    private final long leastSignificantBits;
+    // for a node id, formatted when first needed unless the key was created from its bytes
+    @Nullable
+    private volatile byte[] bytes;
+
+    private NodeKey(long mostSignificantBits, long leastSignificantBits, @Nullable byte[] bytes)
+    {
+        nodeId = true;
+        this.mostSignificantBits = mostSignificantBits;
+        this.leastSignificantBits = leastSignificantBits;
+        this.bytes = bytes;
+    }
+
+    private NodeKey(byte[] bytes)
+    {
+        nodeId = false;
+        mostSignificantBits = 0;
+        leastSignificantBits = 0;
+        this.bytes = bytes;
+    }
+
+    static NodeKey of(Id<Node> id)
+    {
+        UUID uuid = id.get();
+        return new NodeKey(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), null);
+    }
+
+    /**
+     * Returns the key with the given bytes, which must not be modified afterwards.
+     */
+    static NodeKey fromBytes(byte[] bytes)
+    {
+        requireNonNull(bytes, "bytes is null");
+        if (bytes.length != UUID_STRING_LENGTH) {
+            return new NodeKey(bytes);
+        }
+
+        long mostSignificantBits = 0;
+        long leastSignificantBits = 0;
+        int digits = 0;
+        for (int i = 0; i < UUID_STRING_LENGTH; i++) {
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (bytes[i] != '-') {
+                    return new NodeKey(bytes);
+                }
+                continue;
+            }
+            int digit = hexDigit(bytes[i]);
+            if (digit < 0) {
+                return new NodeKey(bytes);
+            }
+            if (digits < 16) {
+                mostSignificantBits = (mostSignificantBits << 4) | digit;
+            }
+            else {
+                leastSignificantBits = (leastSignificantBits << 4) | digit;
+            }
+            digits++;
+        }
+        return new NodeKey(mostSignificantBits, leastSignificantBits, bytes);
+    }
+
+    /**
+     * Returns the key of the node id with the given 16 byte binary form.
+     */
+    static NodeKey fromUuidBytes(byte[] uuid)
+    {
+        checkArgument(uuid.length == 16, "node id must be 16 bytes");
+        ByteBuffer buffer = ByteBuffer.wrap(uuid);
+        return new NodeKey(buffer.getLong(), buffer.getLong(), null);
+    }
+
+    boolean isNodeId()
+    {
+        return nodeId;
+    }
+
+    /**
+     * Returns the 16 byte binary form of the node id.
+     */
+    byte[] toUuidBytes()
+    {
+        checkArgument(nodeId, "key is not a node id");
+        return ByteBuffer.allocate(16)
+                .putLong(mostSignificantBits)
+                .putLong(leastSignificantBits)
+                .array();
+    }
+
+    /**
+     * Returns the bytes of the key, which must not be modified.
+     */
+    byte[] getBytes()
+    {
+        byte[] result = bytes;
+        if (result == null) {
+            result = new byte[UUID_STRING_LENGTH];
+            formatHex(result, 0, mostSignificantBits >>> 32, 8);
+            result[8] = '-';
+            formatHex(result, 9, mostSignificantBits >>> 16, 4);
+            result[13] = '-';
+            formatHex(result, 14, mostSignificantBits, 4);
+            result[18] = '-';
+            formatHex(result, 19, leastSignificantBits >>> 48, 4);
+            result[23] = '-';
+            formatHex(result, 24, leastSignificantBits, 12);
+            bytes = result;
+        }
+        return result;
+    }
+
+    @Override
+    public int compareTo(NodeKey other)
+    {
+        // node ids come first, in the order of their string form
+        if (nodeId != other.nodeId) {
+            return nodeId ? -1 : 1;
+        }
+        if (nodeId) {
+            int result = Long.compareUnsigned(mostSignificantBits, other.mostSignificantBits);
+            if (result == 0) {
+                result = Long.compareUnsigned(leastSignificantBits, other.leastSignificantBits);
+            }
+            return result;
+        }
+        return ByteBuffer.wrap(bytes).compareTo(ByteBuffer.wrap(other.bytes));
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof NodeKey)) {
+            return false;
+        }
+        NodeKey other = (NodeKey) obj;
+        if (nodeId != other.nodeId) {
+            return false;
+        }
+        if (nodeId) {
+            return mostSignificantBits == other.mostSignificantBits && leastSignificantBits == other.leastSignificantBits;
+        }
+        return Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        if (nodeId) {
+            return Long.hashCode(mostSignificantBits ^ leastSignificantBits);
+        }
+        return Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(getBytes(), UTF_8);
+    }
+
+    private static int hexDigit(byte b)
+    {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private static void formatHex(byte[] bytes, int offset, long value, int digits)
+    {
+        for (int i = digits - 1; i >= 0; i--) {
+            bytes[offset + i] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+}
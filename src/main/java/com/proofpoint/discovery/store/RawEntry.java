@@ -0,0 +1,77 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.annotation.Nullable;
+
+import static com.proofpoint.discovery.store.Entry.entry;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An {@link Entry} as received from a peer, with its services still encoded, so that
+ * entries which would not replace the local copy need not be decoded.
+ */
+public class RawEntry
+{
+    private final byte[] key;
+    private final byte[] value;
+    private final long timestamp;
+    private final Long maxAgeInMs;
+    private final String announcer;
+
+    @JsonCreator
+    public RawEntry(@JsonProperty("key") byte[] key,
+            @Nullable @JsonProperty("value") byte[] value,
+            @JsonProperty("timestamp") long timestamp,
+            @Nullable @JsonProperty("maxAgeInMs") Long maxAgeInMs,
+            @Nullable @JsonProperty("announcer") String announcer)
+    {
+        this.key = requireNonNull(key, "key is null");
+        this.value = value;
+        this.timestamp = timestamp;
+        this.maxAgeInMs = maxAgeInMs;
+        this.announcer = announcer;
+    }
+
+    public byte[] getKey()
+    {
+        return key;
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    @Nullable
+    public Long getMaxAgeInMs()
+    {
+        return maxAgeInMs;
+    }
+
+    public boolean isTombstone()
+    {
+        return value == null;
+    }
+
+    public Entry decode()
+    {
+        return entry(key, value, timestamp, maxAgeInMs, announcer);
+    }
+}
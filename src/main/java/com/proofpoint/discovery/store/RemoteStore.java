@@ -18,4 +18,13 @@ package com.proofpoint.discovery.store;
 public interface RemoteStore
 {
     void put(Entry entry);
+
+    /**
+     * Replicates an entry whose content is unchanged from the previous entry for its key, so
+     * that only its timestamp needs to be sent.
+     */
+    default void touch(Entry entry)
+    {
+        put(entry);
+    }
 }
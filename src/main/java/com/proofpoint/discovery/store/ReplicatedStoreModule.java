@@ -84,6 +84,7 @@ public class ReplicatedStoreModule
         Key<InMemoryStore> localStoreKey = Key.get(InMemoryStore.class, annotation);
         Key<StoreConfig> storeConfigKey = Key.get(StoreConfig.class, annotation);
         Key<RemoteStore> remoteStoreKey = Key.get(RemoteStore.class, annotation);
+        Key<StorePersistence> persistenceKey = Key.get(StorePersistence.class, annotation);
         Key<UpdateListener> updateListenerKey = null;
 
         if (localStoreClass == InMemoryStore.class) {
@@ -95,8 +96,9 @@ public class ReplicatedStoreModule
         bindConfig(binder).bind(StoreConfig.class).annotatedWith(annotation).prefixedWith(name);
         httpClientBinder(binder).bindHttpClient(name, annotation);
         binder.bind(DistributedStore.class).annotatedWith(annotation).toProvider(new DistributedStoreProvider(name, localStoreKey, storeConfigKey, remoteStoreKey, updateListenerKey)).in(Scopes.SINGLETON);
-        binder.bind(Replicator.class).annotatedWith(annotation).toProvider(new ReplicatorProvider(name, localStoreKey, httpClientKey, storeConfigKey)).in(Scopes.SINGLETON);
-        binder.bind(HttpRemoteStore.class).annotatedWith(annotation).toProvider(new RemoteHttpStoreProvider(name, httpClientKey, storeConfigKey)).in(Scopes.SINGLETON);
+        binder.bind(Replicator.class).annotatedWith(annotation).toProvider(new ReplicatorProvider(name, localStoreKey, httpClientKey, storeConfigKey, persistenceKey)).in(Scopes.SINGLETON);
+        binder.bind(StorePersistence.class).annotatedWith(annotation).toProvider(new StorePersistenceProvider(name, localStoreKey, storeConfigKey)).in(Scopes.SINGLETON);
+        binder.bind(HttpRemoteStore.class).annotatedWith(annotation).toProvider(new RemoteHttpStoreProvider(name, localStoreKey, httpClientKey, storeConfigKey)).in(Scopes.SINGLETON);
         binder.bind(InMemoryStore.class).annotatedWith(annotation).to(localStoreClass).in(Scopes.SINGLETON);
 
         binder.bind(RemoteStore.class).annotatedWith(annotation).to(Key.get(HttpRemoteStore.class, annotation));
@@ -125,6 +127,7 @@ public class ReplicatedStoreModule
         private final Key<? extends InMemoryStore> localStoreKey;
         private final Key<? extends HttpClient> httpClientKey;
         private final Key<StoreConfig> storeConfigKey;
+        private final Key<StorePersistence> persistenceKey;
 
         @GuardedBy("this")
         private Injector injector;
@@ -138,18 +141,22 @@ public class ReplicatedStoreModule
         @GuardedBy("this")
         private Replicator replicator;
 
-        private ReplicatorProvider(String name, Key<? extends InMemoryStore> localStoreKey, Key<? extends HttpClient> httpClientKey, Key<StoreConfig> storeConfigKey)
+        private ReplicatorProvider(String name, Key<? extends InMemoryStore> localStoreKey, Key<? extends HttpClient> httpClientKey, Key<StoreConfig> storeConfigKey,
+                Key<StorePersistence> persistenceKey)
         {
             this.name = name;
             this.localStoreKey = localStoreKey;
             this.httpClientKey = httpClientKey;
             this.storeConfigKey = storeConfigKey;
+            this.persistenceKey = persistenceKey;
         }
 
         @Override
         public synchronized Replicator get()
         {
             if (replicator == null) {
+                // the persisted entries are loaded before replication starts
+                StorePersistence persistence = injector.getInstance(persistenceKey);
                 InMemoryStore localStore = injector.getInstance(localStoreKey);
                 HttpClient httpClient = injector.getInstance(httpClientKey);
                 StoreConfig storeConfig = injector.getInstance(storeConfigKey);
@@ -166,6 +173,10 @@ public class ReplicatedStoreModule
 
                 replicator = new Replicator(name, nodeInfo, serviceSelector, httpClient, httpServiceBalancerStats, localStore, storeConfig, initializationTracker,
                         newSingleThreadScheduledExecutor(daemonThreadsNamed("replicator-" + name)), discoveryConfig);
+                if (persistence.isRestored()) {
+                    // serve the restored entries while replication fills in what changed since
+                    replicator.markInitialized();
+                }
                 replicator.start();
             }
 
@@ -219,14 +230,16 @@ public class ReplicatedStoreModule
         private ReportExporter reportExporter;
 
         private final String name;
+        private final Key<? extends InMemoryStore> localStoreKey;
         private final Key<? extends HttpClient> httpClientKey;
         private final Key<StoreConfig> storeConfigKey;
 
 
         @Inject
-        private RemoteHttpStoreProvider(String name, Key<? extends HttpClient> httpClientKey, Key<StoreConfig> storeConfigKey)
+        private RemoteHttpStoreProvider(String name, Key<? extends InMemoryStore> localStoreKey, Key<? extends HttpClient> httpClientKey, Key<StoreConfig> storeConfigKey)
         {
             this.name = name;
+            this.localStoreKey = localStoreKey;
             this.httpClientKey = httpClientKey;
             this.storeConfigKey = storeConfigKey;
         }
@@ -235,11 +248,12 @@ public class ReplicatedStoreModule
         public synchronized HttpRemoteStore get()
         {
             if (remoteStore == null) {
+                InMemoryStore localStore = injector.getInstance(localStoreKey);
                 HttpClient httpClient = injector.getInstance(httpClientKey);
                 StoreConfig storeConfig = injector.getInstance(storeConfigKey);
                 DiscoveryConfig discoveryConfig = injector.getInstance(DiscoveryConfig.class);
 
-                remoteStore = new HttpRemoteStore(name, nodeInfo, serviceSelector, storeConfig, httpClient, reportExporter,
+                remoteStore = new HttpRemoteStore(name, nodeInfo, serviceSelector, localStore, storeConfig, httpClient, reportExporter,
                         newSingleThreadScheduledExecutor(daemonThreadsNamed("http-remote-store-" + name)), discoveryConfig);
                 remoteStore.start();
             }
@@ -280,6 +294,67 @@ public class ReplicatedStoreModule
         }
     }
 
+    @ThreadSafe
+    private static class StorePersistenceProvider
+            implements Provider<StorePersistence>
+    {
+        private final String name;
+        private final Key<? extends InMemoryStore> localStoreKey;
+        private final Key<StoreConfig> storeConfigKey;
+
+        @GuardedBy("this")
+        private Injector injector;
+
+        @GuardedBy("this")
+        private Supplier<Instant> timeSupplier;
+
+        @GuardedBy("this")
+        private StorePersistence persistence;
+
+        private StorePersistenceProvider(String name, Key<? extends InMemoryStore> localStoreKey, Key<StoreConfig> storeConfigKey)
+        {
+            this.name = name;
+            this.localStoreKey = localStoreKey;
+            this.storeConfigKey = storeConfigKey;
+        }
+
+        @Override
+        public synchronized StorePersistence get()
+        {
+            if (persistence == null) {
+                InMemoryStore localStore = injector.getInstance(localStoreKey);
+                StoreConfig storeConfig = injector.getInstance(storeConfigKey);
+                DiscoveryConfig discoveryConfig = injector.getInstance(DiscoveryConfig.class);
+
+                persistence = new StorePersistence(name, localStore, storeConfig, discoveryConfig, timeSupplier);
+                persistence.load();
+                persistence.start();
+            }
+
+            return persistence;
+        }
+
+        @PreDestroy
+        public synchronized void shutdown()
+        {
+            if (persistence != null) {
+                persistence.shutdown();
+            }
+        }
+
+        @Inject
+        public synchronized void setInjector(Injector injector)
+        {
+            this.injector = injector;
+        }
+
+        @Inject
+        public synchronized void setTimeSupplier(Supplier<Instant> timeSupplier)
+        {
+            this.timeSupplier = timeSupplier;
+        }
+    }
+
     private static class DistributedStoreProvider
             implements Provider<DistributedStore>
     {
@@ -15,10 +15,12 @@
  */
 package com.proofpoint.discovery.store;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.collect.Lists;
 import com.proofpoint.discovery.DiscoveryConfig;
 import com.proofpoint.discovery.DiscoveryConfig.ReplicationMode;
 import com.proofpoint.discovery.InitializationTracker;
@@ -38,19 +40,35 @@ import com.proofpoint.node.NodeInfo;
 import com.proofpoint.units.Duration;
 import org.weakref.jmx.Managed;
 
+import javax.annotation.Nullable;
+
 import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
+import static com.proofpoint.concurrent.Threads.daemonThreadsNamed;
 import static com.proofpoint.discovery.store.Entries.transformPools;
+import static java.util.concurrent.Executors.newFixedThreadPool;
 
 public class Replicator
 {
     private static final Logger log = Logger.get(Replicator.class);
+    private static final int MAX_BUCKETS_PER_PULL = 64;
 
     private final String name;
     private final NodeInfo node;
@@ -59,8 +77,13 @@ public class Replicator
     private final HttpServiceBalancerStats httpServiceBalancerStats;
     private final InMemoryStore localStore;
     private final Duration replicationInterval;
+    private final int pageSize;
+    private final Duration fullReplicationInterval;
+    private final boolean digestReplicationEnabled;
     private final CompletionNotifier completionNotifier;
     private final ScheduledExecutorService executor;
+    private final ExecutorService pullExecutor;
+    private final long timeoutNanos;
     private final String generalPoolMapTarget;
     private final ReplicationMode generalPoolLegacyReplicationMode;
 
@@ -68,6 +91,8 @@ public class Replicator
 
     private final ObjectMapper mapper = new ObjectMapper(new SmileFactory()).disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
     private final AtomicLong lastReplicationTimestamp = new AtomicLong();
+    // per peer uri
+    private final Map<String, Watermark> watermarks = new ConcurrentHashMap<>();
 
     public Replicator(String name,
             NodeInfo node,
@@ -87,8 +112,13 @@ public class Replicator
         this.httpServiceBalancerStats = httpServiceBalancerStats;
         this.localStore = localStore;
         this.replicationInterval = config.getReplicationInterval();
+        this.pageSize = config.getReplicationPageSize();
+        this.fullReplicationInterval = config.getFullReplicationInterval();
+        this.digestReplicationEnabled = config.isDigestReplicationEnabled();
         completionNotifier = initializationTracker.createTask();
         this.executor = executor;
+        pullExecutor = newFixedThreadPool(config.getReplicationConcurrency(), daemonThreadsNamed("replicator-" + name + "-pull-%s"));
+        timeoutNanos = config.getReplicationTimeout().roundTo(TimeUnit.NANOSECONDS);
         generalPoolMapTarget = discoveryConfig.getGeneralPoolMapTarget();
         generalPoolLegacyReplicationMode = discoveryConfig.getGeneralPoolLegacyReplicationMode();
     }
@@ -114,9 +144,19 @@ public class Replicator
         if (future != null) {
             future.cancel(true);
             executor.shutdownNow();
+            pullExecutor.shutdownNow();
         }
     }
 
+    /**
+     * Marks the local store as initialized without waiting for the first replication, as it
+     * has been restored from local persistence.
+     */
+    void markInitialized()
+    {
+        completionNotifier.complete();
+    }
+
     @Managed
     public long getLastReplicationTimestamp()
     {
@@ -125,6 +165,8 @@ public class Replicator
 
     private void synchronize()
     {
+        // peers are pulled from concurrently, so that a slow peer delays only its own pull
+        Map<String, PeerPull> pulls = new LinkedHashMap<>();
         for (ServiceDescriptor descriptor : selector.selectAllServices()) {
             if (node.getNodeId().equals(descriptor.getNodeId())) {
                 // don't write to ourselves
@@ -136,65 +178,305 @@ public class Replicator
                 log.error("service descriptor for node %s is missing http uri", descriptor.getNodeId());
                 continue;
             }
+            if (!pulls.containsKey(uri)) {
+                PeerPull pull = new PeerPull();
+                pull.future = pullExecutor.submit(() -> {
+                    replicateFrom(uri, pull);
+                    return null;
+                });
+                pulls.put(uri, pull);
+            }
+        }
 
-            // TODO: build URI from resource class
-            Request request = Request.Builder.prepareGet()
-                    .setUri(URI.create(uri + "/v1/store/" + name))
-                    .addHeader("Accept", "application/x-jackson-smile")
-                    .build();
+        try {
+            for (Map.Entry<String, PeerPull> pull : pulls.entrySet()) {
+                await(pull.getKey(), pull.getValue());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (PeerPull pull : pulls.values()) {
+                pull.future.cancel(true);
+            }
+            return;
+        }
+        watermarks.keySet().retainAll(pulls.keySet());
 
+        completionNotifier.complete();
+        lastReplicationTimestamp.set(System.currentTimeMillis());
+    }
+
+    /**
+     * Waits for a pull to complete, cancelling it once one of its requests has run for the
+     * replication timeout. A pull of many pages may take longer than the timeout as a whole.
+     */
+    private void await(String uri, PeerPull pull)
+            throws InterruptedException
+    {
+        while (true) {
+            long requestStartNanos = pull.requestStartNanos;
+            long remainingNanos = (requestStartNanos == 0) ? timeoutNanos : requestStartNanos + timeoutNanos - System.nanoTime();
+            if (remainingNanos <= 0) {
+                // the interrupted pull discards its watermark
+                pull.future.cancel(true);
+                log.warn("Replication from %s timed out", uri);
+                return;
+            }
             try {
-                final long startTime = System.nanoTime();
-                httpClient.execute(request, new ResponseHandler<Void, Exception>()
-                {
-                    @Override
-                    public Void handleException(Request request, Exception exception)
-                            throws Exception
-                    {
-                        URI uri1 = URI.create(uri);
-                        httpServiceBalancerStats.requestTime(uri1, Status.FAILURE).add(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
-                        httpServiceBalancerStats.failure(uri1, exception.getClass().getSimpleName()).add(1);
-                        throw exception;
+                pull.future.get(remainingNanos, TimeUnit.NANOSECONDS);
+                return;
+            }
+            catch (TimeoutException ignored) {
+                // the pull may have been queued, or moved on to its next request, during the wait
+            }
+            catch (ExecutionException e) {
+                log.warn(e.getCause(), "Error replicating from %s", uri);
+                return;
+            }
+        }
+    }
+
+    private void replicateFrom(String uri, PeerPull pull)
+            throws Exception
+    {
+        if (digestReplicationEnabled) {
+            try {
+                if (replicateByDigest(uri, pull)) {
+                    return;
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (Exception e) {
+                log.warn(e, "Error exchanging digests with %s, falling back to a pull", uri);
+            }
+            // the peer predates digests or the exchange failed, so fall back to a pull
+        }
+
+        long startMillis = System.currentTimeMillis();
+        Watermark watermark = watermarks.get(uri);
+        boolean full = watermark == null || startMillis - watermark.fullPullMillis >= fullReplicationInterval.toMillis();
+
+        // an entry can reach the peer after its timestamp, by up to the push delay plus the
+        // clock skew between nodes, so the pull starts a replication interval before the last
+        Long since = full ? null : watermark.pullMillis - replicationInterval.toMillis();
+
+        try {
+            // large stores are pulled in pages; peers that predate paging return everything at once
+            String cursor = null;
+            do {
+                String query = "limit=" + pageSize;
+                if (cursor != null) {
+                    query += "&cursor=" + cursor;
+                }
+                if (since != null) {
+                    query += "&since=" + since;
+                }
+                cursor = replicatePage(uri, query, pull);
+            }
+            while (cursor != null);
+
+            watermarks.put(uri, new Watermark(startMillis, full ? startMillis : watermark.fullPullMillis));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            watermarks.remove(uri);
+        }
+        catch (Exception e) {
+            // entries may have been missed, so the next pull is a full one
+            watermarks.remove(uri);
+            throw e;
+        }
+    }
+
+    /**
+     * Pulls the entries in the buckets of the peer's {@link DigestTree} whose digests differ
+     * from ours. Returns false if the peer does not support digests.
+     */
+    private boolean replicateByDigest(String uri, PeerPull pull)
+            throws Exception
+    {
+        long[] remoteDigests = getDigests(uri, null, pull);
+        if (remoteDigests == null || remoteDigests.length != DigestTree.FANOUT) {
+            return false;
+        }
+        long[] localDigests = localStore.getDigests(null);
+
+        List<Integer> buckets = new ArrayList<>();
+        for (int node = 0; node < DigestTree.FANOUT; node++) {
+            if (remoteDigests[node] != localDigests[node]) {
+                long[] remoteLeafDigests = getDigests(uri, node, pull);
+                if (remoteLeafDigests == null || remoteLeafDigests.length != DigestTree.FANOUT) {
+                    return false;
+                }
+                long[] localLeafDigests = localStore.getDigests(node);
+                for (int leaf = 0; leaf < DigestTree.FANOUT; leaf++) {
+                    if (remoteLeafDigests[leaf] != localLeafDigests[leaf]) {
+                        buckets.add(DigestTree.bucket(node, leaf));
                     }
+                }
+            }
+        }
+
+        for (List<Integer> batch : Lists.partition(buckets, MAX_BUCKETS_PER_PULL)) {
+            replicatePage(uri, batch.stream()
+                    .map(bucket -> "bucket=" + bucket)
+                    .collect(Collectors.joining("&")), pull);
+        }
+        return true;
+    }
+
+    /**
+     * Returns null if the peer does not support digests.
+     */
+    @Nullable
+    private long[] getDigests(String uri, @Nullable Integer node, PeerPull pull)
+            throws Exception
+    {
+        // TODO: build URI from resource class
+        String digestUri = uri + "/v1/store/" + name + "/digest";
+        if (node != null) {
+            digestUri += "?node=" + node;
+        }
+        Request request = Request.Builder.prepareGet()
+                .setUri(URI.create(digestUri))
+                .addHeader("Accept", "application/x-jackson-smile")
+                .build();
+
+        pull.requestStartNanos = System.nanoTime();
+        return httpClient.execute(request, new ResponseHandler<long[], Exception>()
+        {
+            @Override
+            public long[] handleException(Request request, Exception exception)
+                    throws Exception
+            {
+                throw exception;
+            }
+
+            @Override
+            public long[] handle(Request request, Response response)
+                    throws Exception
+            {
+                if (response.getStatusCode() == 404 || response.getStatusCode() == 415) {
+                    // peer predates digests
+                    return null;
+                }
+                if (response.getStatusCode() != 200) {
+                    throw new Exception("Remote server returned " + response.getStatusCode() + " status code");
+                }
+                return mapper.readValue(response.getInputStream(), long[].class);
+            }
+        });
+    }
+
+    /**
+     * Pulls the entries selected by the query. Returns the cursor of the next page, or null
+     * if there is none.
+     */
+    @Nullable
+    private String replicatePage(final String uri, String query, PeerPull pull)
+            throws Exception
+    {
+        // TODO: build URI from resource class
+        Request request = Request.Builder.prepareGet()
+                .setUri(URI.create(uri + "/v1/store/" + name + "?" + query))
+                .addHeader("Accept", EntryCodec.MEDIA_TYPE + ", application/x-jackson-smile;q=0.5")
+                .build();
 
-                    @Override
-                    public Void handle(Request request, Response response)
-                            throws Exception
-                    {
-                        // TODO: read server date (to use to calibrate entry dates)
-
-                        URI uri1 = URI.create(uri);
-                        if (response.getStatusCode() == 200) {
-                            httpServiceBalancerStats.requestTime(uri1, Status.SUCCESS).add(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
-                            try {
-                                List<Entry> entries = mapper.readValue(response.getInputStream(), new TypeReference<List<Entry>>() {});
-                                for (Entry entry : entries) {
-                                    if (generalPoolLegacyReplicationMode != ReplicationMode.PHASE_THREE) {
-                                        entry = transformPools(entry, "general", generalPoolMapTarget);
-                                    }
-                                    localStore.put(entry);
-                                }
-                            }
-                            catch (EOFException | NullPointerException ignored) {
-                            }
+        final long startTime = System.nanoTime();
+        pull.requestStartNanos = startTime;
+        return httpClient.execute(request, new ResponseHandler<String, Exception>()
+        {
+            @Override
+            public String handleException(Request request, Exception exception)
+                    throws Exception
+            {
+                URI uri1 = URI.create(uri);
+                httpServiceBalancerStats.requestTime(uri1, Status.FAILURE).add(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                httpServiceBalancerStats.failure(uri1, exception.getClass().getSimpleName()).add(1);
+                throw exception;
+            }
+
+            @Override
+            public String handle(Request request, Response response)
+                    throws Exception
+            {
+                // TODO: read server date (to use to calibrate entry dates)
+
+                URI uri1 = URI.create(uri);
+                if (response.getStatusCode() == 200) {
+                    httpServiceBalancerStats.requestTime(uri1, Status.SUCCESS).add(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                    try {
+                        // entries are applied as they are read, and most of a peer's entries are
+                        // no newer than ours, so they are discarded before decoding
+                        if (isEncoded(response)) {
+                            EntryCodec.readEntries(response.getInputStream(), localStore::wouldReplace, Replicator.this::apply);
                         }
                         else {
-                            httpServiceBalancerStats.requestTime(uri1, Status.FAILURE).add(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
-                            httpServiceBalancerStats.failure(uri1, response.getStatusCode() + " status code").add(1);
+                            readRawEntries(response.getInputStream());
                         }
-
-                        return null;
                     }
-                });
+                    catch (EOFException | NullPointerException ignored) {
+                    }
+                    return response.getHeader(StoreResource.CURSOR_HEADER);
+                }
+
+                httpServiceBalancerStats.requestTime(uri1, Status.FAILURE).add(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                httpServiceBalancerStats.failure(uri1, response.getStatusCode() + " status code").add(1);
+                throw new Exception("Remote server returned " + response.getStatusCode() + " status code");
             }
-            catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+        });
+    }
+
+    private void readRawEntries(InputStream in)
+            throws IOException
+    {
+        try (JsonParser parser = mapper.getFactory().createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                return;
             }
-            catch (Exception ignored) {
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                RawEntry entry = parser.readValueAs(RawEntry.class);
+                if (localStore.wouldReplace(entry.getKey(), entry.getTimestamp())) {
+                    apply(entry.decode());
+                }
             }
         }
+    }
 
-        completionNotifier.complete();
-        lastReplicationTimestamp.set(System.currentTimeMillis());
+    private void apply(Entry entry)
+    {
+        if (generalPoolLegacyReplicationMode != ReplicationMode.PHASE_THREE) {
+            entry = transformPools(entry, "general", generalPoolMapTarget);
+        }
+        localStore.put(entry);
+    }
+
+    private static boolean isEncoded(Response response)
+    {
+        // peers that predate the encoded format respond with plain Smile
+        String contentType = response.getHeader("Content-Type");
+        return contentType != null && contentType.startsWith(EntryCodec.MEDIA_TYPE);
+    }
+
+    private static class Watermark
+    {
+        private final long pullMillis;
+        private final long fullPullMillis;
+
+        Watermark(long pullMillis, long fullPullMillis)
+        {
+            this.pullMillis = pullMillis;
+            this.fullPullMillis = fullPullMillis;
+        }
+    }
+
+    private static class PeerPull
+    {
+        // the start of the request in progress, or zero until the first starts
+        private volatile long requestStartNanos;
+        private Future<?> future;
     }
 }
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.discovery.Id;
+import com.proofpoint.discovery.Service;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Secondary index of store entries by service type and pool.
+ * <p>
+ * An entry is indexed under every (type, pool) of the services it contains. Tombstones are
+ * not indexed. Expiration is not tracked: readers are expected to filter expired entries.
+ * <p>
+ * Each type, and each (type, pool), carries a version, drawn from a single store-wide
+ * sequence, that is advanced after any change to the set of services indexed under it. A
+ * renewal that leaves the services unchanged does not advance the version unless the previous
+ * entry had expired. Each also retains a bounded log of its most recent changes, so that
+ * readers can ask for the changes after a version they have already seen. Each log has its
+ * own lock, and a change draws its version while holding the locks of the logs of its types,
+ * so that changes to different types do not contend and every log is in version order.
+ * <p>
+ * Updates for a given key must be serialized by the caller.
+ */
+class ServiceIndex
+{
+    private static final int MAX_CHANGES_PER_LOG = 1000;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Pool>> index = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ChangeLog> typeLogs = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final Supplier<Instant> timeSupplier;
+
+    ServiceIndex(Supplier<Instant> timeSupplier)
+    {
+        this.timeSupplier = requireNonNull(timeSupplier, "timeSupplier is null");
+    }
+
+    /**
+     * Returns whether the update changed the indexed services, advancing their versions.
+     */
+    boolean update(NodeKey key, @Nullable Entry oldEntry, @Nullable Entry newEntry)
+    {
+        List<Service> oldServices = oldEntry == null ? null : oldEntry.getValue();
+        List<Service> newServices = newEntry == null ? null : newEntry.getValue();
+
+        if (newServices != null) {
+            for (Service service : newServices) {
+                getOrCreatePool(service.getType(), service.getPool()).entries.put(key, newEntry);
+            }
+        }
+
+        if (oldServices != null) {
+            for (Service service : oldServices) {
+                if (newServices == null || !containsTypeAndPool(newServices, service.getType(), service.getPool())) {
+                    Pool pool = getPool(service.getType(), service.getPool());
+                    if (pool != null) {
+                        pool.entries.remove(key);
+                    }
+                }
+            }
+        }
+
+        // advance versions only after the index reflects the change, so that a reader which
+        // observes a version never sees contents older than that version
+        if (!isChanged(oldEntry, newEntry)) {
+            return false;
+        }
+
+        long now = timeSupplier.get().toEpochMilli();
+        SortedSet<String> types = new TreeSet<>();
+        for (List<Service> services : Arrays.asList(oldServices, newServices)) {
+            if (services != null) {
+                for (Service service : services) {
+                    types.add(service.getType());
+                }
+            }
+        }
+        List<ChangeLog> locks = types.stream()
+                .map(this::getOrCreateTypeLog)
+                .collect(toImmutableList());
+
+        withLocks(locks.iterator(), () -> {
+            long newVersion = version.incrementAndGet();
+            for (String type : types) {
+                getOrCreateTypeLog(type).add(new Change(newVersion, now, key, getRemovedIds(oldServices, newServices, type, null)));
+            }
+            Set<Pool> pools = new HashSet<>();
+            for (List<Service> services : Arrays.asList(oldServices, newServices)) {
+                if (services != null) {
+                    for (Service service : services) {
+                        Pool pool = getOrCreatePool(service.getType(), service.getPool());
+                        if (pools.add(pool)) {
+                            pool.log.add(new Change(newVersion, now, key, getRemovedIds(oldServices, newServices, service.getType(), service.getPool())));
+                        }
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns the entries containing services of the given type, grouped by pool.
+     */
+    Map<String, Collection<Entry>> get(String type)
+    {
+        Map<String, Pool> pools = index.get(type);
+        if (pools == null) {
+            return ImmutableMap.of();
+        }
+
+        ImmutableMap.Builder<String, Collection<Entry>> builder = ImmutableMap.builder();
+        for (Map.Entry<String, Pool> pool : pools.entrySet()) {
+            builder.put(pool.getKey(), pool.getValue().entries.values());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the entries containing services of the given type and pool.
+     */
+    Collection<Entry> get(String type, String pool)
+    {
+        Pool indexedPool = getPool(type, pool);
+        if (indexedPool == null) {
+            return ImmutableList.of();
+        }
+        return indexedPool.entries.values();
+    }
+
+    long getVersion()
+    {
+        return version.get();
+    }
+
+    long getVersion(String type)
+    {
+        ChangeLog log = typeLogs.get(type);
+        if (log == null) {
+            return 0;
+        }
+        return log.version.get();
+    }
+
+    long getVersion(String type, String pool)
+    {
+        Pool indexedPool = getPool(type, pool);
+        if (indexedPool == null) {
+            return 0;
+        }
+        return indexedPool.log.version.get();
+    }
+
+    /**
+     * Returns the changes to the services of the given type, and pool if not null, after the
+     * given version. Returns null if the version is not one this index has reached or some of
+     * the changes after it are no longer retained.
+     */
+    @Nullable
+    Changes getChanges(String type, @Nullable String pool, long version)
+    {
+        ChangeLog log;
+        if (pool == null) {
+            log = typeLogs.get(type);
+        }
+        else {
+            Pool indexedPool = getPool(type, pool);
+            log = indexedPool == null ? null : indexedPool.log;
+        }
+
+        if (log == null) {
+            return version > 0 ? null : new Changes(ImmutableSet.of(), ImmutableSet.of(), 0);
+        }
+        return log.getChanges(version);
+    }
+
+    @Nullable
+    private Pool getPool(String type, String pool)
+    {
+        Map<String, Pool> pools = index.get(type);
+        if (pools == null) {
+            return null;
+        }
+        return pools.get(pool);
+    }
+
+    private Pool getOrCreatePool(String type, String pool)
+    {
+        return index.computeIfAbsent(type, ignored -> new ConcurrentHashMap<>())
+                .computeIfAbsent(pool, ignored -> new Pool());
+    }
+
+    private ChangeLog getOrCreateTypeLog(String type)
+    {
+        return typeLogs.computeIfAbsent(type, ignored -> new ChangeLog());
+    }
+
+    private static void withLocks(Iterator<ChangeLog> logs, Runnable action)
+    {
+        if (!logs.hasNext()) {
+            action.run();
+            return;
+        }
+        synchronized (logs.next()) {
+            withLocks(logs, action);
+        }
+    }
+
+    private static boolean isChanged(@Nullable Entry oldEntry, @Nullable Entry newEntry)
+    {
+        List<Service> oldServices = oldEntry == null ? null : oldEntry.getValue();
+        List<Service> newServices = newEntry == null ? null : newEntry.getValue();
+
+        if (oldServices == null || newServices == null) {
+            return oldServices != newServices;
+        }
+
+        // an expired entry is not visible to readers, so renewing it is a change even if the services are the same
+        Long oldMaxAge = oldEntry.getMaxAgeInMs();
+        if (oldMaxAge != null && newEntry.getTimestamp() - oldEntry.getTimestamp() > oldMaxAge) {
+            return true;
+        }
+
+        return !Entries.sameServices(oldServices, newServices);
+    }
+
+    private static List<Id<Service>> getRemovedIds(@Nullable List<Service> oldServices, @Nullable List<Service> newServices, String type, @Nullable String pool)
+    {
+        if (oldServices == null) {
+            return ImmutableList.of();
+        }
+
+        ImmutableList.Builder<Id<Service>> builder = ImmutableList.builder();
+        for (Service service : oldServices) {
+            if (service.getType().equals(type) && (pool == null || service.getPool().equals(pool)) && !containsId(newServices, service.getId())) {
+                builder.add(service.getId());
+            }
+        }
+        return builder.build();
+    }
+
+    private static boolean containsId(@Nullable List<Service> services, Id<Service> id)
+    {
+        if (services == null) {
+            return false;
+        }
+        for (Service service : services) {
+            if (service.getId().equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsTypeAndPool(List<Service> services, String type, String pool)
+    {
+        for (Service service : services) {
+            if (service.getType().equals(type) && service.getPool().equals(pool)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Changes after a version: the keys whose entries changed, the ids of services that were
+     * removed from them, and the time the version was reached, or an earlier time if unknown.
+     */
+    static class Changes
+    {
+        private final Set<NodeKey> keys;
+        private final Set<Id<Service>> removed;
+        private final long sinceMillis;
+
+        private Changes(Set<NodeKey> keys, Set<Id<Service>> removed, long sinceMillis)
+        {
+            this.keys = keys;
+            this.removed = removed;
+            this.sinceMillis = sinceMillis;
+        }
+
+        Set<NodeKey> getKeys()
+        {
+            return keys;
+        }
+
+        Set<Id<Service>> getRemoved()
+        {
+            return removed;
+        }
+
+        long getSinceMillis()
+        {
+            return sinceMillis;
+        }
+    }
+
+    private static class Change
+    {
+        private final long version;
+        private final long timeMillis;
+        private final NodeKey key;
+        private final List<Id<Service>> removed;
+
+        private Change(long version, long timeMillis, NodeKey key, List<Id<Service>> removed)
+        {
+            this.version = version;
+            this.timeMillis = timeMillis;
+            this.key = key;
+            this.removed = removed;
+        }
+    }
+
+    private static class Pool
+    {
+        private final ConcurrentMap<NodeKey, Entry> entries = new ConcurrentHashMap<>();
+        private final ChangeLog log = new ChangeLog();
+    }
+
+    private static class ChangeLog
+    {
+        private final AtomicLong version = new AtomicLong();
+
+        @GuardedBy("this")
+        private final Deque<Change> changes = new ArrayDeque<>();
+
+        @GuardedBy("this")
+        private long discardedVersion;
+
+        /**
+         * Logs the change and then advances the version of the log, so that a reader which
+         * observes a version also sees the logged changes up to it.
+         */
+        private synchronized void add(Change change)
+        {
+            if (changes.size() == MAX_CHANGES_PER_LOG) {
+                discardedVersion = changes.removeFirst().version;
+            }
+            changes.addLast(change);
+            version.set(change.version);
+        }
+
+        @Nullable
+        private synchronized Changes getChanges(long sinceVersion)
+        {
+            if (sinceVersion > version.get() || discardedVersion > sinceVersion) {
+                return null;
+            }
+
+            Set<NodeKey> keys = new HashSet<>();
+            Set<Id<Service>> removed = new HashSet<>();
+            long sinceMillis = 0;
+            for (Change change : changes) {
+                if (change.version > sinceVersion) {
+                    keys.add(change.key);
+                    removed.addAll(change.removed);
+                }
+                else {
+                    sinceMillis = change.timeMillis;
+                }
+            }
+            return new Changes(keys, removed, sinceMillis);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import javax.annotation.Nullable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+/**
+ * Tracks callers waiting for the services of a type, or of a type and pool, to change.
+ */
+class ServiceWatcher
+        implements ChangeListener
+{
+    private final ConcurrentMap<WatchKey, Set<SettableFuture<Void>>> watches = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a future that completes once the current version differs from the given version.
+     * The caller should cancel the future if it stops waiting.
+     */
+    ListenableFuture<?> watch(String type, @Nullable String pool, long version, LongSupplier currentVersion)
+    {
+        WatchKey key = new AutoValue_ServiceWatcher_WatchKey(type, pool);
+        SettableFuture<Void> future = SettableFuture.create();
+
+        watches.compute(key, (ignored, futures) -> {
+            if (futures == null) {
+                futures = ConcurrentHashMap.newKeySet();
+            }
+            futures.add(future);
+            return futures;
+        });
+        future.addListener(() -> watches.computeIfPresent(key, (ignored, futures) -> {
+            futures.remove(future);
+            return futures.isEmpty() ? null : futures;
+        }), directExecutor());
+
+        // checked after registering, so that a concurrent change is either seen here or notified
+        if (currentVersion.getAsLong() != version) {
+            future.set(null);
+        }
+        return future;
+    }
+
+    @Override
+    public void notifyChange(String type, String pool)
+    {
+        complete(new AutoValue_ServiceWatcher_WatchKey(type, pool));
+        complete(new AutoValue_ServiceWatcher_WatchKey(type, null));
+    }
+
+    private void complete(WatchKey key)
+    {
+        Set<SettableFuture<Void>> futures = watches.get(key);
+        if (futures != null) {
+            for (SettableFuture<Void> future : futures) {
+                future.set(null);
+            }
+        }
+    }
+
+    @AutoValue
+    abstract static class WatchKey
+    {
+        abstract String getType();
+
+        @Nullable
+        abstract String getPool();
+    }
+}
@@ -21,16 +21,28 @@ import com.proofpoint.units.MinDuration;
 
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.io.File;
 import java.util.concurrent.TimeUnit;
 
 public class StoreConfig
 {
     private Duration tombstoneMaxAge = new Duration(1, TimeUnit.DAYS);
-    private Duration garbageCollectionInterval = new Duration(1, TimeUnit.HOURS);
+    private Duration garbageCollectionInterval = new Duration(1, TimeUnit.SECONDS);
     private int maxBatchSize = 1000;
     private int queueSize = 1000;
+    private int senderThreads = 8;
+    private int maxInFlightBatches = 1;
+    private Duration maxLinger = new Duration(0, TimeUnit.MILLISECONDS);
     private Duration remoteUpdateInterval = new Duration(5, TimeUnit.SECONDS);
     private Duration replicationInterval = new Duration(1, TimeUnit.MINUTES);
+    private int replicationPageSize = 10_000;
+    private Duration fullReplicationInterval = new Duration(10, TimeUnit.MINUTES);
+    private boolean digestReplicationEnabled;
+    private int replicationConcurrency = 8;
+    private Duration replicationTimeout = new Duration(1, TimeUnit.MINUTES);
+    private boolean compactKeysEnabled;
+    private File persistenceDirectory;
+    private Duration snapshotInterval = new Duration(5, TimeUnit.MINUTES);
 
     @NotNull
     public Duration getTombstoneMaxAge()
@@ -84,6 +96,45 @@ public class StoreConfig
         return this;
     }
 
+    @Min(1)
+    public int getSenderThreads()
+    {
+        return senderThreads;
+    }
+
+    @Config("store.remote.sender-threads")
+    public StoreConfig setSenderThreads(int senderThreads)
+    {
+        this.senderThreads = senderThreads;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxInFlightBatches()
+    {
+        return maxInFlightBatches;
+    }
+
+    @Config("store.remote.max-in-flight-batches")
+    public StoreConfig setMaxInFlightBatches(int maxInFlightBatches)
+    {
+        this.maxInFlightBatches = maxInFlightBatches;
+        return this;
+    }
+
+    @NotNull
+    public Duration getMaxLinger()
+    {
+        return maxLinger;
+    }
+
+    @Config("store.remote.max-linger")
+    public StoreConfig setMaxLinger(Duration maxLinger)
+    {
+        this.maxLinger = maxLinger;
+        return this;
+    }
+
     @MinDuration("1ms")
     @NotNull
     public Duration getRemoteUpdateInterval()
@@ -110,4 +161,108 @@ public class StoreConfig
         this.replicationInterval = replicationInterval;
         return this;
     }
+
+    @Min(1)
+    public int getReplicationPageSize()
+    {
+        return replicationPageSize;
+    }
+
+    @Config("store.remote.replication-page-size")
+    public StoreConfig setReplicationPageSize(int replicationPageSize)
+    {
+        this.replicationPageSize = replicationPageSize;
+        return this;
+    }
+
+    @MinDuration("1ms")
+    @NotNull
+    public Duration getFullReplicationInterval()
+    {
+        return fullReplicationInterval;
+    }
+
+    @Config("store.remote.full-replication-interval")
+    public StoreConfig setFullReplicationInterval(Duration fullReplicationInterval)
+    {
+        this.fullReplicationInterval = fullReplicationInterval;
+        return this;
+    }
+
+    public boolean isDigestReplicationEnabled()
+    {
+        return digestReplicationEnabled;
+    }
+
+    @Config("store.remote.digest-replication-enabled")
+    public StoreConfig setDigestReplicationEnabled(boolean digestReplicationEnabled)
+    {
+        this.digestReplicationEnabled = digestReplicationEnabled;
+        return this;
+    }
+
+    @Min(1)
+    public int getReplicationConcurrency()
+    {
+        return replicationConcurrency;
+    }
+
+    @Config("store.remote.replication-concurrency")
+    public StoreConfig setReplicationConcurrency(int replicationConcurrency)
+    {
+        this.replicationConcurrency = replicationConcurrency;
+        return this;
+    }
+
+    @MinDuration("1ms")
+    @NotNull
+    public Duration getReplicationTimeout()
+    {
+        return replicationTimeout;
+    }
+
+    @Config("store.remote.replication-timeout")
+    public StoreConfig setReplicationTimeout(Duration replicationTimeout)
+    {
+        this.replicationTimeout = replicationTimeout;
+        return this;
+    }
+
+    public boolean isCompactKeysEnabled()
+    {
+        return compactKeysEnabled;
+    }
+
+    @Config("store.remote.compact-keys-enabled")
+    public StoreConfig setCompactKeysEnabled(boolean compactKeysEnabled)
+    {
+        this.compactKeysEnabled = compactKeysEnabled;
+        return this;
+    }
+
+    public File getPersistenceDirectory()
+    {
+        return persistenceDirectory;
+    }
+
+    @Config("store.persistence.directory")
+    public StoreConfig setPersistenceDirectory(File persistenceDirectory)
+    {
+        this.persistenceDirectory = persistenceDirectory;
+        return this;
+    }
+
+    @MinDuration("1s")
+    @NotNull
+    public Duration getSnapshotInterval()
+    {
+        return snapshotInterval;
+    }
+
+    @Config("store.persistence.snapshot-interval")
+    public StoreConfig setSnapshotInterval(Duration snapshotInterval)
+    {
+        this.snapshotInterval = snapshotInterval;
+        return this;
+    }
 }
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.Iterables;
+import com.proofpoint.discovery.DiscoveryConfig;
+import com.proofpoint.log.Logger;
+import com.proofpoint.units.Duration;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static com.proofpoint.concurrent.Threads.daemonThreadsNamed;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+
+/**
+ * Keeps a copy of a store on local disk, so that a restarted node can serve from it before
+ * it has replicated from its peers.
+ * <p>
+ * The entries put into the store are appended to a log off the request path, and the live
+ * entries of the store are periodically written to a snapshot, which supersedes the logs
+ * written before it was started. Puts to a key between flushes are coalesced into one
+ * appended entry, and a snapshot is also written once the logs since the last one outgrow
+ * it, so that renewals cannot grow the logs without bound. Entries are encoded in the
+ * {@link EntryCodec} format.
+ * Replaying the logs after the snapshot is idempotent, as the store keeps the newest entry
+ * for each key, so a crash at any point loses at most the entries not yet flushed.
+ * <p>
+ * The restored entries are only served before replication if the snapshot was read in full
+ * and the files were last written within the store's max-age, as otherwise the node may have
+ * missed too many announcements while it was down.
+ */
+final class StorePersistence
+        implements PutListener
+{
+    private static final Logger log = Logger.get(StorePersistence.class);
+
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String LOG_FILE_PREFIX = "log-";
+    private static final long FLUSH_INTERVAL_MILLIS = 100;
+    // keys beyond this are left to a snapshot written at the next flush
+    private static final int MAX_PENDING_ENTRIES = 100_000;
+    // the logs may always grow to this size before a snapshot supersedes them
+    private static final long MIN_LOG_BYTES = 16 * 1024 * 1024;
+
+    private final String name;
+    private final InMemoryStore localStore;
+    @Nullable
+    private final Path directory;
+    private final Duration snapshotInterval;
+    private final Duration tombstoneMaxAge;
+    private final Duration maxAge;
+    private final ScheduledExecutorService executor;
+    private final Supplier<Instant> timeSupplier;
+
+    // the latest entry put for each key since the last flush
+    @GuardedBy("pending")
+    private final Map<NodeKey, Entry> pending = new LinkedHashMap<>();
+
+    @GuardedBy("pending")
+    private boolean pendingOverflowed;
+
+    @GuardedBy("this")
+    private long logSequence;
+
+    @GuardedBy("this")
+    private OutputStream logOutput;
+
+    // bytes written to the logs that the next snapshot supersedes
+    @GuardedBy("this")
+    private long logBytes;
+
+    @GuardedBy("this")
+    private long snapshotBytes;
+
+    @GuardedBy("this")
+    private boolean restored;
+
+    StorePersistence(String name, InMemoryStore localStore, StoreConfig config, DiscoveryConfig discoveryConfig, Supplier<Instant> timeSupplier)
+    {
+        this.name = requireNonNull(name, "name is null");
+        this.localStore = requireNonNull(localStore, "localStore is null");
+        requireNonNull(config, "config is null");
+        directory = config.getPersistenceDirectory() == null ? null : config.getPersistenceDirectory().toPath();
+        snapshotInterval = config.getSnapshotInterval();
+        tombstoneMaxAge = config.getTombstoneMaxAge();
+        maxAge = requireNonNull(discoveryConfig, "discoveryConfig is null").getMaxAge();
+        executor = newSingleThreadScheduledExecutor(daemonThreadsNamed("store-persistence-" + name));
+        this.timeSupplier = requireNonNull(timeSupplier, "timeSupplier is null");
+    }
+
+    /**
+     * Puts the persisted entries that have not expired into the store, returning whether they
+     * can be served before replication: whether any of them are live, the snapshot was read in
+     * full, and the persisted state is no older than the store's max-age.
+     */
+    synchronized boolean load()
+    {
+        if (directory == null) {
+            return false;
+        }
+
+        try {
+            Files.createDirectories(directory);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Unable to create persistence directory for store " + name, e);
+        }
+
+        long now = timeSupplier.get().toEpochMilli();
+        long lastWrittenMillis = getLastWrittenMillis();
+        AtomicInteger live = new AtomicInteger();
+        Consumer<Entry> restore = entry -> {
+            if (!isExpired(entry, now)) {
+                localStore.put(entry);
+                if (entry.getValue() != null) {
+                    live.incrementAndGet();
+                }
+            }
+        };
+
+        boolean complete = true;
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(snapshot))) {
+                snapshotBytes = Files.size(snapshot);
+                EntryCodec.readEntries(in, (key, timestamp) -> true, restore);
+            }
+            catch (IOException e) {
+                log.warn(e, "Unable to read snapshot of store %s", name);
+                complete = false;
+            }
+        }
+
+        for (long sequence : getLogSequences()) {
+            Path logFile = getLogFile(sequence);
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(logFile))) {
+                logBytes += Files.size(logFile);
+                if (Files.size(logFile) > 0) {
+                    EntryCodec.readSegments(in, restore);
+                }
+            }
+            catch (EOFException e) {
+                // the tail of a log is lost if the process died while appending to it
+                log.warn(e, "Log %s of store %s ends with an incomplete entry", logFile.getFileName(), name);
+            }
+            catch (IOException e) {
+                log.warn(e, "Unable to read all of log %s of store %s", logFile.getFileName(), name);
+                complete = false;
+            }
+            logSequence = Math.max(logSequence, sequence + 1);
+        }
+
+        restored = live.get() > 0 && complete && now - lastWrittenMillis <= maxAge.toMillis();
+        if (restored) {
+            log.info("Restored %s live entries of store %s", live.get(), name);
+        }
+        else if (live.get() > 0) {
+            log.info("Restored %s live entries of store %s, to be served once replicated", live.get(), name);
+        }
+        return restored;
+    }
+
+    synchronized boolean isRestored()
+    {
+        return restored;
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    void start()
+    {
+        if (directory == null) {
+            return;
+        }
+
+        localStore.addPutListener(this);
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            }
+            catch (Throwable e) {
+                log.warn(e, "Error writing log of store %s", name);
+            }
+        }, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            }
+            catch (Throwable e) {
+                log.warn(e, "Error writing snapshot of store %s", name);
+            }
+        }, snapshotInterval.toMillis(), snapshotInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown()
+    {
+        // not interrupted, as that would close the channel being written to
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            flush();
+            closeLog();
+        }
+    }
+
+    @Override
+    public void notifyPut(Entry entry)
+    {
+        NodeKey key = NodeKey.fromBytes(entry.getKey());
+        synchronized (pending) {
+            Entry queued = pending.get(key);
+            if (queued == null && pending.size() >= MAX_PENDING_ENTRIES) {
+                pendingOverflowed = true;
+                return;
+            }
+            if (queued == null || entry.getTimestamp() >= queued.getTimestamp()) {
+                pending.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Appends the entries put since the last flush to the log, and writes a snapshot if the
+     * logs have outgrown the last one or some entries could not be queued.
+     */
+    synchronized void flush()
+    {
+        if (directory == null) {
+            return;
+        }
+
+        List<Entry> entries;
+        boolean overflowed;
+        synchronized (pending) {
+            entries = new ArrayList<>(pending.values());
+            pending.clear();
+            overflowed = pendingOverflowed;
+            pendingOverflowed = false;
+        }
+
+        if (!entries.isEmpty()) {
+            try {
+                if (logOutput == null) {
+                    logOutput = new BufferedOutputStream(Files.newOutputStream(getLogFile(logSequence), CREATE, TRUNCATE_EXISTING, WRITE));
+                    EntryCodec.writeSegmentsPrefix(logOutput);
+                }
+                for (Entry entry : entries) {
+                    byte[] segment = EntryCodec.encode(entry, false);
+                    logOutput.write(segment);
+                    logBytes += segment.length;
+                }
+                logOutput.flush();
+            }
+            catch (IOException e) {
+                // the entries are recovered by the next snapshot
+                log.warn(e, "Error writing log of store %s", name);
+                closeLog();
+            }
+        }
+
+        if (overflowed || logBytes > Math.max(MIN_LOG_BYTES, snapshotBytes)) {
+            snapshot();
+        }
+    }
+
+    /**
+     * Writes the live entries of the store to a new snapshot and deletes the logs it supersedes.
+     */
+    synchronized void snapshot()
+    {
+        if (directory == null) {
+            return;
+        }
+
+        // entries put from here on are appended to a new log, while every entry in the
+        // previous logs is already in the store
+        closeLog();
+        long supersededSequence = logSequence - 1;
+
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        long now = timeSupplier.get().toEpochMilli();
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary, CREATE, TRUNCATE_EXISTING, WRITE))) {
+                EntryCodec.writeEntries(Iterables.filter(localStore.getAll(), entry -> !isExpired(entry, now)), out);
+            }
+            try (FileChannel channel = FileChannel.open(temporary, WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temporary, directory.resolve(SNAPSHOT_FILE), ATOMIC_MOVE, REPLACE_EXISTING);
+            snapshotBytes = Files.size(directory.resolve(SNAPSHOT_FILE));
+            logBytes = 0;
+        }
+        catch (IOException e) {
+            log.warn(e, "Error writing snapshot of store %s", name);
+            return;
+        }
+
+        for (long sequence : getLogSequences()) {
+            if (sequence <= supersededSequence) {
+                try {
+                    Files.deleteIfExists(getLogFile(sequence));
+                }
+                catch (IOException e) {
+                    log.warn(e, "Unable to delete log %s of store %s", sequence, name);
+                }
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void closeLog()
+    {
+        if (logOutput != null) {
+            try {
+                logOutput.close();
+            }
+            catch (IOException e) {
+                log.warn(e, "Error closing log of store %s", name);
+            }
+            logOutput = null;
+        }
+        // a log is never appended to once closed, so that a torn write is always at the end of a log
+        logSequence++;
+    }
+
+    private List<Long> getLogSequences()
+    {
+        List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, LOG_FILE_PREFIX + "*")) {
+            for (Path file : files) {
+                try {
+                    sequences.add(Long.parseLong(file.getFileName().toString().substring(LOG_FILE_PREFIX.length())));
+                }
+                catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        catch (IOException e) {
+            log.warn(e, "Unable to list logs of store %s", name);
+        }
+        Collections.sort(sequences);
+        return sequences;
+    }
+
+    /**
+     * Returns when the snapshot or a log was last written, or 0 if there are none.
+     */
+    private long getLastWrittenMillis()
+    {
+        List<Path> files = new ArrayList<>();
+        files.add(directory.resolve(SNAPSHOT_FILE));
+        for (long sequence : getLogSequences()) {
+            files.add(getLogFile(sequence));
+        }
+
+        long lastWrittenMillis = 0;
+        for (Path file : files) {
+            try {
+                lastWrittenMillis = Math.max(lastWrittenMillis, Files.getLastModifiedTime(file).toMillis());
+            }
+            catch (NoSuchFileException ignored) {
+            }
+            catch (IOException e) {
+                log.warn(e, "Unable to read modification time of %s of store %s", file.getFileName(), name);
+            }
+        }
+        return lastWrittenMillis;
+    }
+
+    private Path getLogFile(long sequence)
+    {
+        return directory.resolve(LOG_FILE_PREFIX + sequence);
+    }
+
+    private boolean isExpired(Entry entry, long now)
+    {
+        long ageInMs = now - entry.getTimestamp();
+
+        return (entry.getValue() == null && ageInMs > tombstoneMaxAge.toMillis()) ||
+                (entry.getMaxAgeInMs() != null && ageInMs > entry.getMaxAgeInMs());
+    }
+}
@@ -15,13 +15,20 @@
  */
 package com.proofpoint.discovery.store;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
 import com.proofpoint.discovery.AuthManager;
 import com.proofpoint.discovery.DiscoveryConfig;
 import com.proofpoint.discovery.DiscoveryConfig.ReplicationMode;
+import com.proofpoint.json.ObjectMapperProvider;
 import com.proofpoint.units.Duration;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
@@ -30,19 +37,43 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.Variant;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-
-import static com.google.common.collect.ImmutableList.toImmutableList;
+import java.util.function.Predicate;
 
 @Path("/v1/store/{store}")
 public class StoreResource
 {
+    public static final String CURSOR_HEADER = "X-Discovery-Store-Cursor";
+
+    private static final BaseEncoding CURSOR_ENCODING = BaseEncoding.base64Url().omitPadding();
+    private static final MediaType SMILE_MEDIA_TYPE = MediaType.valueOf("application/x-jackson-smile");
+    private static final MediaType JSON_MEDIA_TYPE = MediaType.APPLICATION_JSON_TYPE;
+    private static final List<Variant> LEGACY_VARIANTS = Variant.mediaTypes(SMILE_MEDIA_TYPE, JSON_MEDIA_TYPE).build();
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapperProvider().get();
+    private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory());
+
+    static {
+        JSON_MAPPER.getFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        SMILE_MAPPER.getFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
     private final Map<String, InMemoryStore> localStores;
     private final Map<String, Duration> tombstoneMaxAges;
+    private final Map<String, Boolean> compactKeys;
     private final String generalPoolMapTarget;
     private final ReplicationMode generalPoolLegacyReplicationMode;
     private final AuthManager authManager;
@@ -52,6 +83,7 @@ public class StoreResource
     {
         this.localStores = ImmutableMap.copyOf(localStores);
         this.tombstoneMaxAges = ImmutableMap.copyOf(Maps.transformValues(configs, StoreConfig::getTombstoneMaxAge));
+        this.compactKeys = ImmutableMap.copyOf(Maps.transformValues(configs, StoreConfig::isCompactKeysEnabled));
         generalPoolMapTarget = discoveryConfig.getGeneralPoolMapTarget();
         generalPoolLegacyReplicationMode = discoveryConfig.getGeneralPoolLegacyReplicationMode();
         this.authManager = authManager;
@@ -59,7 +91,7 @@ public class StoreResource
 
     @POST
     @Consumes({"application/x-jackson-smile", "application/json"})
-    public Response setMultipleEntries(@PathParam("store") String storeName, List<Entry> entries, @Context HttpServletRequest request)
+    public Response setMultipleEntries(@PathParam("store") String storeName, List<RawEntry> entries, @Context HttpServletRequest request)
     {
         authManager.checkAuthReplicate(request);
         InMemoryStore store = localStores.get(storeName);
@@ -68,42 +100,211 @@ public class StoreResource
             return Response.status(Status.NOT_FOUND).build();
         }
 
-        for (Entry entry : entries) {
-            if (!isExpired(tombstoneMaxAge, entry)) {
-                if (generalPoolLegacyReplicationMode != ReplicationMode.PHASE_THREE) {
-                    entry = Entries.transformPools(entry, "general", generalPoolMapTarget);
-                }
-                store.put(entry);
+        for (RawEntry entry : entries) {
+            // most replicated entries are no newer than ours, so check before decoding
+            if (!isExpired(tombstoneMaxAge, entry.getTimestamp(), entry.getMaxAgeInMs(), entry.isTombstone()) &&
+                    store.wouldReplace(entry.getKey(), entry.getTimestamp())) {
+                put(store, entry.decode());
             }
         }
         return Response.noContent().build();
     }
 
+    @POST
+    @Consumes(EntryCodec.MEDIA_TYPE)
+    public Response setMultipleEncodedEntries(@PathParam("store") String storeName, InputStream entries, @Context HttpServletRequest request)
+            throws IOException
+    {
+        authManager.checkAuthReplicate(request);
+        InMemoryStore store = localStores.get(storeName);
+        Duration tombstoneMaxAge = tombstoneMaxAges.get(storeName);
+        if (store == null || tombstoneMaxAge == null) {
+            return Response.status(Status.NOT_FOUND).build();
+        }
+
+        EntryCodec.readEntries(entries, store::wouldReplace, entry -> {
+            if (!isExpired(tombstoneMaxAge, entry.getTimestamp(), entry.getMaxAgeInMs(), entry.getValue() == null)) {
+                put(store, entry);
+            }
+        });
+        return Response.noContent().build();
+    }
+
+    private void put(InMemoryStore store, Entry entry)
+    {
+        if (generalPoolLegacyReplicationMode != ReplicationMode.PHASE_THREE) {
+            entry = Entries.transformPools(entry, "general", generalPoolMapTarget);
+        }
+        store.put(entry);
+    }
+
+    /**
+     * Applies touches to the entries they match. Responds with the keys of the touches that
+     * did not match, for which the sender should send the full entries.
+     */
+    @POST
+    @Path("touch")
+    @Consumes({"application/x-jackson-smile", "application/json"})
+    @Produces({"application/x-jackson-smile", "application/json"})
+    public Response touchMultipleEntries(@PathParam("store") String storeName, List<Touch> touches, @Context HttpServletRequest request)
+    {
+        authManager.checkAuthReplicate(request);
+        InMemoryStore store = localStores.get(storeName);
+        if (store == null) {
+            return Response.status(Status.NOT_FOUND).build();
+        }
+
+        List<byte[]> unmatched = new ArrayList<>();
+        for (Touch touch : touches) {
+            if (!isExpired(touch) && !store.touch(touch)) {
+                unmatched.add(touch.getKey());
+            }
+        }
+
+        if (unmatched.isEmpty()) {
+            return Response.noContent().build();
+        }
+        return Response.ok(unmatched).build();
+    }
+
+    /**
+     * Returns the digests of the children of the root of the store's {@link DigestTree} if
+     * no node is given, otherwise of the leaves of the given child of the root.
+     */
     @GET
+    @Path("digest")
     @Produces({"application/x-jackson-smile", "application/json"})
-    public Response getAll(@PathParam("store") String storeName)
+    public Response getDigests(@PathParam("store") String storeName, @QueryParam("node") Integer node)
+    {
+        InMemoryStore store = localStores.get(storeName);
+        if (store == null) {
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        if (node != null && (node < 0 || node >= DigestTree.FANOUT)) {
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+        return Response.ok(store.getDigests(node)).build();
+    }
+
+    /**
+     * Streams the entries of the store, only those with timestamps at or after since if given.
+     * If a limit is given, responds with at most that many entries in key order, starting after
+     * the cursor if given, and with a cursor for the next page in the {@value #CURSOR_HEADER}
+     * header if there may be more. If buckets of the store's {@link DigestTree} are given,
+     * responds with just the entries in them, unpaged.
+     */
+    @GET
+    @Produces({"application/x-jackson-smile", "application/json"})
+    public Response getAll(@PathParam("store") String storeName,
+            @QueryParam("cursor") String cursor,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("since") Long since,
+            @QueryParam("bucket") List<Integer> buckets,
+            @Context Request request)
+    {
+        Variant variant = request.selectVariant(LEGACY_VARIANTS);
+        MediaType mediaType = (variant == null) ? SMILE_MEDIA_TYPE : variant.getMediaType();
+        ObjectMapper mapper = mediaType.isCompatible(JSON_MEDIA_TYPE) ? JSON_MAPPER : SMILE_MAPPER;
+        return getEntries(storeName, cursor, limit, since, buckets, mediaType, (entries, out) -> {
+            try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+                generator.writeStartArray();
+                for (Entry entry : entries) {
+                    generator.writeObject(entry);
+                }
+                generator.writeEndArray();
+            }
+        });
+    }
+
+    @GET
+    @Produces(EntryCodec.MEDIA_TYPE + ";qs=0.5")
+    public Response getAllEncoded(@PathParam("store") String storeName,
+            @QueryParam("cursor") String cursor,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("since") Long since,
+            @QueryParam("bucket") List<Integer> buckets)
+    {
+        return getEntries(storeName, cursor, limit, since, buckets, MediaType.valueOf(EntryCodec.MEDIA_TYPE),
+                (entries, out) -> EntryCodec.writeEntries(entries, out, compactKeys.getOrDefault(storeName, false)));
+    }
+
+    private Response getEntries(String storeName,
+            @Nullable String cursor,
+            @Nullable Integer limit,
+            @Nullable Long since,
+            @Nullable List<Integer> buckets,
+            MediaType mediaType,
+            EntryWriter writer)
     {
         InMemoryStore store = localStores.get(storeName);
         if (store == null) {
             return Response.status(Status.NOT_FOUND).build();
         }
 
+        byte[] afterKey = null;
+        if (cursor != null) {
+            try {
+                afterKey = CURSOR_ENCODING.decode(cursor);
+            }
+            catch (IllegalArgumentException e) {
+                return Response.status(Status.BAD_REQUEST).build();
+            }
+        }
+        if (limit != null && limit < 1) {
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+
+        Predicate<Entry> filter = (since == null) ? entry -> true : entry -> entry.getTimestamp() >= since;
+
+        Iterable<Entry> entries;
+        String nextCursor = null;
+        if (buckets != null && !buckets.isEmpty()) {
+            if (buckets.stream().anyMatch(bucket -> bucket < 0 || bucket >= DigestTree.BUCKETS)) {
+                return Response.status(Status.BAD_REQUEST).build();
+            }
+            entries = Iterables.filter(store.getBuckets(buckets), filter::test);
+        }
+        else if (afterKey == null && limit == null) {
+            entries = Iterables.filter(store.getAll(), filter::test);
+        }
+        else {
+            List<Entry> page = store.getPage(afterKey, limit == null ? Integer.MAX_VALUE : limit, filter);
+            if (limit != null && page.size() == limit) {
+                nextCursor = CURSOR_ENCODING.encode(page.get(page.size() - 1).getKey());
+            }
+            entries = page;
+        }
+
         if (generalPoolLegacyReplicationMode == ReplicationMode.PHASE_ONE) {
-            return Response.ok(
-                    store.getAll().stream()
-                            .map(entry -> Entries.transformPools(entry, generalPoolMapTarget, "general"))
-                            .collect(toImmutableList()))
-                    .build();
+            entries = Iterables.transform(entries, entry -> Entries.transformPools(entry, generalPoolMapTarget, "general"));
         }
 
-        return Response.ok(store.getAll()).build();
+        // entries are encoded directly to the response as the store is iterated
+        Iterable<Entry> responseEntries = entries;
+        StreamingOutput output = out -> writer.write(responseEntries, out);
+        ResponseBuilder builder = Response.ok(output, mediaType);
+        if (nextCursor != null) {
+            builder.header(CURSOR_HEADER, nextCursor);
+        }
+        return builder.build();
     }
 
-    private static boolean isExpired(Duration tombstoneMaxAge, Entry entry)
+    private static boolean isExpired(Duration tombstoneMaxAge, long timestamp, @Nullable Long maxAgeInMs, boolean tombstone)
     {
-        long ageInMs = System.currentTimeMillis() - entry.getTimestamp();
+        long ageInMs = System.currentTimeMillis() - timestamp;
+
+        return (tombstone && ageInMs > tombstoneMaxAge.toMillis()) ||
+                (maxAgeInMs != null && ageInMs > maxAgeInMs);
+    }
 
-        return (entry.getValue() == null && ageInMs > tombstoneMaxAge.toMillis()) ||
-                (entry.getMaxAgeInMs() != null && ageInMs > entry.getMaxAgeInMs());
+    private static boolean isExpired(Touch touch)
+    {
+        return touch.getMaxAgeInMs() != null && System.currentTimeMillis() - touch.getTimestamp() > touch.getMaxAgeInMs();
+    }
+
+    private interface EntryWriter
+    {
+        void write(Iterable<Entry> entries, OutputStream out)
+                throws IOException;
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableMap;
+import com.proofpoint.discovery.Service;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of the entries in a store, maintained as entries change rather than by scanning the
+ * store. Expired entries are counted until they are removed.
+ * <p>
+ * Updates for a given key must be serialized by the caller.
+ */
+class StoreStats
+{
+    // rough per-object overheads, for an estimate of the heap held by the entries
+    private static final long ENTRY_OVERHEAD_BYTES = 96;
+    private static final long SERVICE_OVERHEAD_BYTES = 128;
+    private static final long PROPERTY_OVERHEAD_BYTES = 64;
+
+    private final AtomicLong entryCount = new AtomicLong();
+    private final AtomicLong tombstoneCount = new AtomicLong();
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final ConcurrentMap<String, Long> serviceCounts = new ConcurrentHashMap<>();
+
+    void update(@Nullable Entry oldEntry, @Nullable Entry newEntry)
+    {
+        if (oldEntry != null && newEntry != null && isRenewal(oldEntry, newEntry)) {
+            return;
+        }
+        if (oldEntry != null) {
+            add(oldEntry, -1);
+        }
+        if (newEntry != null) {
+            add(newEntry, 1);
+        }
+    }
+
+    /**
+     * Returns the number of entries that are not tombstones.
+     */
+    long getEntryCount()
+    {
+        return entryCount.get();
+    }
+
+    long getTombstoneCount()
+    {
+        return tombstoneCount.get();
+    }
+
+    long getApproximateSizeInBytes()
+    {
+        return sizeInBytes.get();
+    }
+
+    Map<String, Long> getServiceCounts()
+    {
+        return ImmutableMap.copyOf(serviceCounts);
+    }
+
+    /**
+     * A renewal keeps the services of the entry it replaces, so the counts and size are
+     * unchanged and the services need not be walked.
+     */
+    private static boolean isRenewal(Entry oldEntry, Entry newEntry)
+    {
+        return oldEntry.getValue() == newEntry.getValue() &&
+                oldEntry.getKey().length == newEntry.getKey().length &&
+                Objects.equals(oldEntry.getAnnouncer(), newEntry.getAnnouncer());
+    }
+
+    private void add(Entry entry, int sign)
+    {
+        sizeInBytes.addAndGet(sign * estimateSize(entry));
+        if (entry.getValue() == null) {
+            tombstoneCount.addAndGet(sign);
+            return;
+        }
+        entryCount.addAndGet(sign);
+        for (Service service : entry.getValue()) {
+            serviceCounts.merge(service.getType(), (long) sign, (count, delta) -> (count + delta == 0) ? null : count + delta);
+        }
+    }
+
+    private static long estimateSize(Entry entry)
+    {
+        long size = ENTRY_OVERHEAD_BYTES + entry.getKey().length + stringSize(entry.getAnnouncer());
+        if (entry.getValue() != null) {
+            for (Service service : entry.getValue()) {
+                size += SERVICE_OVERHEAD_BYTES + stringSize(service.getType()) + stringSize(service.getPool()) + stringSize(service.getLocation());
+                for (Map.Entry<String, String> property : service.getProperties().entrySet()) {
+                    size += PROPERTY_OVERHEAD_BYTES + stringSize(property.getKey()) + stringSize(property.getValue());
+                }
+            }
+        }
+        return size;
+    }
+
+    private static long stringSize(@Nullable String string)
+    {
+        return (string == null) ? 0 : 2L * string.length();
+    }
+}
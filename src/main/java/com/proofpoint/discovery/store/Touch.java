@@ -0,0 +1,74 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.auto.value.AutoValue;
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Replication message for an entry whose content is unchanged, carrying only its new
+ * timestamp and a hash of the content it is expected to have.
+ */
+@AutoValue
+public abstract class Touch
+{
+    @JsonCreator
+    public static Touch touch(@JsonProperty("key") byte[] key,
+            @JsonProperty("timestamp") long timestamp,
+            @Nullable @JsonProperty("maxAgeInMs") Long maxAgeInMs,
+            @JsonProperty("contentHash") long contentHash)
+    {
+        checkArgument(maxAgeInMs == null || maxAgeInMs > 0, "maxAgeInMs must be greater than 0");
+        return new AutoValue_Touch(key, timestamp, maxAgeInMs, contentHash);
+    }
+
+    public static Touch touchOf(Entry entry)
+    {
+        return touch(entry.getKey(), entry.getTimestamp(), entry.getMaxAgeInMs(), entry.getContentHash());
+    }
+
+    @JsonProperty
+    @SuppressWarnings("mutable")
+    public abstract byte[] getKey();
+
+    @JsonProperty
+    public abstract long getTimestamp();
+
+    @Nullable
+    @JsonProperty
+    public abstract Long getMaxAgeInMs();
+
+    @JsonProperty
+    public abstract long getContentHash();
+
+    @Override
+    public String toString()
+    {
+        return MoreObjects.toStringHelper(this)
+                .add("key", new String(getKey(), UTF_8))
+                .add("timestamp", getTimestamp())
+                .add("maxAgeInMs", getMaxAgeInMs())
+                .add("contentHash", getContentHash())
+                .toString();
+    }
+}
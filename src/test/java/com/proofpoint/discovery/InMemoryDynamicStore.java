@@ -16,22 +16,32 @@
 package com.proofpoint.discovery;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.proofpoint.units.Duration;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
 import static com.proofpoint.discovery.Service.matchesPool;
 import static com.proofpoint.discovery.Service.matchesType;
+import static com.proofpoint.discovery.ServiceChanges.serviceChanges;
 import static java.util.Objects.requireNonNull;
 
 @ThreadSafe
@@ -41,6 +51,10 @@ public class InMemoryDynamicStore
     private final Map<Id<Node>, LocalEntry> descriptors = new HashMap<>();
     private final Duration maxAge;
     private final Supplier<Instant> currentTime;
+    private long version;
+    private final List<SettableFuture<Void>> watches = new ArrayList<>();
+    private final List<Change> changes = new ArrayList<>();
+    private long discardedVersion;
 
     @Inject
     public InMemoryDynamicStore(DiscoveryConfig config, Supplier<Instant> timeSource)
@@ -60,7 +74,8 @@ public class InMemoryDynamicStore
                 .collect(toImmutableSet());
 
         Instant expiration = currentTime.get().plusMillis((int) maxAge.toMillis());
-        descriptors.put(nodeId, new LocalEntry(expiration, services, announcement.getAnnouncerAddr()));
+        LocalEntry old = descriptors.put(nodeId, new LocalEntry(expiration, services, announcement.getAnnouncerAddr()));
+        changed(nodeId, old);
     }
 
     @Override
@@ -68,7 +83,10 @@ public class InMemoryDynamicStore
     {
         requireNonNull(nodeId, "nodeId is null");
 
-        descriptors.remove(nodeId);
+        LocalEntry old = descriptors.remove(nodeId);
+        if (old != null) {
+            changed(nodeId, old);
+        }
     }
 
     @Override
@@ -111,6 +129,128 @@ public class InMemoryDynamicStore
         return localEntry.getAnnouncer();
     }
 
+    @Override
+    public synchronized long getVersion(String type)
+    {
+        return version;
+    }
+
+    @Override
+    public synchronized long getVersion(String type, String pool)
+    {
+        return version;
+    }
+
+    @Override
+    public synchronized Instant getExpiration(String type)
+    {
+        return getExpiration();
+    }
+
+    @Override
+    public synchronized Instant getExpiration(String type, String pool)
+    {
+        return getExpiration();
+    }
+
+    @Override
+    public synchronized ListenableFuture<?> watch(String type, long version)
+    {
+        return watch(version);
+    }
+
+    @Override
+    public synchronized ListenableFuture<?> watch(String type, String pool, long version)
+    {
+        return watch(version);
+    }
+
+    @Override
+    public ServiceChanges getChanges(String type, long version)
+    {
+        requireNonNull(type, "type is null");
+
+        return getChanges(version, matchesType(type));
+    }
+
+    @Override
+    public ServiceChanges getChanges(String type, String pool, long version)
+    {
+        requireNonNull(type, "type is null");
+        requireNonNull(pool, "pool is null");
+
+        return getChanges(version, matchesType(type).and(matchesPool(pool)));
+    }
+
+    /**
+     * Discards the changes made so far, as if they were no longer retained.
+     */
+    public synchronized void discardChanges()
+    {
+        changes.clear();
+        discardedVersion = version;
+    }
+
+    private synchronized ServiceChanges getChanges(long sinceVersion, Predicate<Service> predicate)
+    {
+        if (sinceVersion > version || sinceVersion < discardedVersion) {
+            return null;
+        }
+        removeExpired();
+
+        Set<Id<Node>> nodeIds = new HashSet<>();
+        Set<Id<Service>> removed = new HashSet<>();
+        for (Change change : changes) {
+            if (change.getVersion() > sinceVersion) {
+                nodeIds.add(change.getNodeId());
+                change.getOldServices().stream()
+                        .filter(predicate)
+                        .forEach(service -> removed.add(service.getId()));
+            }
+        }
+
+        List<Service> services = nodeIds.stream()
+                .map(descriptors::get)
+                .filter(Objects::nonNull)
+                .flatMap(entry -> entry.getServices().stream())
+                .filter(predicate)
+                .collect(toImmutableList());
+        services.forEach(service -> removed.remove(service.getId()));
+        return serviceChanges(services, removed);
+    }
+
+    private synchronized ListenableFuture<?> watch(long watchVersion)
+    {
+        SettableFuture<Void> future = SettableFuture.create();
+        if (watchVersion != version) {
+            future.set(null);
+        }
+        else {
+            watches.add(future);
+        }
+        return future;
+    }
+
+    private synchronized void changed(Id<Node> nodeId, @Nullable LocalEntry old)
+    {
+        ++version;
+        changes.add(new Change(version, nodeId, old == null ? ImmutableSet.of() : old.getServices()));
+        for (SettableFuture<Void> future : watches) {
+            future.set(null);
+        }
+        watches.clear();
+    }
+
+    private synchronized Instant getExpiration()
+    {
+        removeExpired();
+
+        return descriptors.values().stream()
+                .map(LocalEntry::getExpiration)
+                .min(Instant::compareTo)
+                .orElse(Instant.MAX);
+    }
+
     private synchronized void removeExpired()
     {
         Iterator<LocalEntry> iterator = descriptors.values().iterator();
@@ -125,6 +265,35 @@ public class InMemoryDynamicStore
         }
     }
 
+    private static class Change
+    {
+        private final long version;
+        private final Id<Node> nodeId;
+        private final Set<Service> oldServices;
+
+        Change(long version, Id<Node> nodeId, Set<Service> oldServices)
+        {
+            this.version = version;
+            this.nodeId = nodeId;
+            this.oldServices = oldServices;
+        }
+
+        long getVersion()
+        {
+            return version;
+        }
+
+        Id<Node> getNodeId()
+        {
+            return nodeId;
+        }
+
+        Set<Service> getOldServices()
+        {
+            return oldServices;
+        }
+    }
+
     private static class LocalEntry
     {
         private final Set<Service> services;
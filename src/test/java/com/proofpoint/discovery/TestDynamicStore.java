@@ -22,6 +22,7 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.time.Instant;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -82,6 +83,49 @@ public abstract class TestDynamicStore
         assertThat(store.getAll()).isEmpty();
     }
 
+    @Test
+    public void testExpiresByTypeAndPool()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))
+        ));
+
+        store.put(nodeId, blue);
+        advanceTimeBeyondMaxAge();
+        assertThat(store.get("storage")).isEmpty();
+        assertThat(store.get("storage", "poolA")).isEmpty();
+    }
+
+    @Test
+    public void testWatch()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))
+        ));
+
+        Future<?> typeWatch = store.watch("storage", store.getVersion("storage"));
+        Future<?> poolWatch = store.watch("storage", "poolA", store.getVersion("storage", "poolA"));
+        assertThat(typeWatch).isNotDone();
+        assertThat(poolWatch).isNotDone();
+
+        store.put(nodeId, blue);
+        assertThat(typeWatch).isDone();
+        assertThat(poolWatch).isDone();
+    }
+
+    @Test
+    public void testWatchStaleVersion()
+    {
+        long version = store.getVersion("storage", "poolA");
+        store.put(Id.random(), new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))
+        )));
+
+        assertThat(store.watch("storage", "poolA", version)).isDone();
+    }
+
     @Test
     public void testPutMultipleForSameNode()
     {
@@ -367,7 +411,7 @@ public abstract class TestDynamicStore
     }
 
 
-    private void advanceTimeBeyondMaxAge()
+    protected void advanceTimeBeyondMaxAge()
     {
         currentTime.add(new Duration(MAX_AGE.toMillis() * 2, TimeUnit.MILLISECONDS));
     }
@@ -57,6 +57,19 @@ public class TestService
         assertThat(service.getProperties()).isNotEqualTo(properties);
     }
 
+    @Test
+    public void testSharesEqualValues()
+    {
+        Map<String, String> properties = ImmutableMap.of("http", "http://127.0.0.1:" + Id.random());
+        Service service = new Service(Id.random(), Id.random(), new String("type"), new String("pool"), "/location", properties);
+        Service other = new Service(Id.random(), Id.random(), new String("type"), new String("pool"), "/location", new HashMap<>(properties));
+
+        assertThat(other.getType()).isSameAs(service.getType());
+        assertThat(other.getPool()).isSameAs(service.getPool());
+        assertThat(service.getProperties()).isSameAs(properties);
+        assertThat(other.getProperties()).isSameAs(properties);
+    }
+
     @Test
     public void testImmutableProperties()
     {
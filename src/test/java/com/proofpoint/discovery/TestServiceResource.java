@@ -22,6 +22,7 @@ import com.google.common.collect.Iterables;
 import com.google.inject.Injector;
 import com.proofpoint.bootstrap.Bootstrap;
 import com.proofpoint.bootstrap.LifeCycleManager;
+import com.proofpoint.discovery.store.StoreConfig;
 import com.proofpoint.http.client.HttpClient;
 import com.proofpoint.http.client.StatusResponseHandler.StatusResponse;
 import com.proofpoint.http.client.jetty.JettyHttpClient;
@@ -29,6 +30,7 @@ import com.proofpoint.http.server.testing.TestingHttpServer;
 import com.proofpoint.http.server.testing.TestingHttpServerModule;
 import com.proofpoint.json.JsonCodec;
 import com.proofpoint.json.JsonModule;
+import com.proofpoint.json.ObjectMapperProvider;
 import com.proofpoint.node.NodeInfo;
 import com.proofpoint.node.testing.TestingNodeModule;
 import com.proofpoint.reporting.ReportingModule;
@@ -43,6 +45,8 @@ import org.weakref.jmx.testing.TestingMBeanModule;
 
 import java.net.URI;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -53,6 +57,7 @@ import static com.proofpoint.http.client.StatusResponseHandler.createStatusRespo
 import static com.proofpoint.jaxrs.JaxrsBinder.jaxrsBinder;
 import static com.proofpoint.jaxrs.JaxrsModule.explicitJaxrsModule;
 import static com.proofpoint.json.JsonCodec.mapJsonCodec;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 import static javax.ws.rs.core.Response.Status.OK;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
@@ -90,7 +95,8 @@ public class TestServiceResource
     {
         initMocks(this);
 
-        dynamicStore = new InMemoryDynamicStore(new DiscoveryConfig(), new TestingTimeSupplier());
+        TestingTimeSupplier timeSupplier = new TestingTimeSupplier();
+        dynamicStore = new InMemoryDynamicStore(new DiscoveryConfig(), timeSupplier);
         Id<Node> redNodeId = Id.random();
         DynamicServiceAnnouncement redStorage = new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("key", "1"));
         DynamicServiceAnnouncement redWeb = new DynamicServiceAnnouncement(Id.random(), "web", ImmutableMap.of("key", "2"));
@@ -114,7 +120,7 @@ public class TestServiceResource
         blueStorageRepresentation = toServiceRepresentation(blueNodeId, blue, blueStorage);
 
         ServiceResource resource = new ServiceResource(dynamicStore, configStore, proxyStore, new NodeInfo("testing"),
-                initializationTracker, new DiscoveryConfig().setGeneralPoolMapTarget("SNV"));
+                initializationTracker, new DiscoveryConfig().setGeneralPoolMapTarget("SNV"), new StoreConfig(), timeSupplier, new ObjectMapperProvider().get());
 
         Bootstrap app = bootstrapApplication("test-application")
                 .doNotInitializeLogging()
@@ -284,6 +290,35 @@ public class TestServiceResource
         verifyNoMoreInteractions(proxyStore);
     }
 
+    @Test
+    public void testGetByTypeAndPoolAfterUpdate()
+    {
+        when(proxyStore.get(any(String.class), any(String.class))).thenReturn(null);
+        when(configStore.get(any(String.class), any(String.class))).thenAnswer((Answer<Stream<Service>>) invocation -> Stream.of());
+
+        Map<String, Object> actual = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage/beta")).build(),
+                createJsonResponseHandler(mapCodec, OK.getStatusCode()));
+        assertThat(actual).isEqualTo(ImmutableMap.of(
+                "environment", "testing",
+                "services", ImmutableList.of(
+                        blueStorageRepresentation
+                )));
+
+        Id<Node> yellowNodeId = Id.random();
+        DynamicServiceAnnouncement yellowStorage = new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("key", "5"));
+        DynamicAnnouncement yellow = new DynamicAnnouncement("testing", "beta", "/a/b/c", ImmutableSet.of(yellowStorage));
+        dynamicStore.put(yellowNodeId, yellow);
+
+        actual = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage/beta")).build(),
+                createJsonResponseHandler(mapCodec, OK.getStatusCode()));
+        assertThat((Iterable<Object>) actual.get("services")).containsExactlyInAnyOrder(
+                blueStorageRepresentation,
+                toServiceRepresentation(yellowNodeId, yellow, yellowStorage)
+        );
+    }
+
     @Test
     public void testGetAll()
     {
@@ -468,6 +503,203 @@ public class TestServiceResource
         );
     }
 
+    @Test
+    public void testNotModified()
+    {
+        when(proxyStore.get(any(String.class), any(String.class))).thenReturn(null);
+        when(configStore.get(any(String.class), any(String.class))).thenAnswer((Answer<Stream<Service>>) invocation -> Stream.of());
+
+        StatusResponse response = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage/alpha")).build(),
+                createStatusResponseHandler());
+        assertThat(response.getStatusCode()).isEqualTo(200);
+        assertThat(response.getHeader("Cache-Control")).contains("max-age=10");
+        String etag = response.getHeader("ETag");
+        assertThat(etag).isNotNull();
+
+        response = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage/alpha")).setHeader("If-None-Match", etag).build(),
+                createStatusResponseHandler());
+        assertThat(response.getStatusCode()).isEqualTo(304);
+        assertThat(response.getHeader("ETag")).isEqualTo(etag);
+
+        response = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage/beta")).setHeader("If-None-Match", etag).build(),
+                createStatusResponseHandler());
+        assertThat(response.getStatusCode()).isEqualTo(200);
+        assertThat(response.getHeader("ETag")).isNotEqualTo(etag);
+    }
+
+    @Test
+    public void testNotModifiedAfterUpdate()
+    {
+        when(proxyStore.get(any(String.class))).thenReturn(null);
+        when(configStore.get(any(String.class))).thenAnswer((Answer<Stream<Service>>) invocation -> Stream.of());
+
+        StatusResponse response = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage")).build(),
+                createStatusResponseHandler());
+        String etag = response.getHeader("ETag");
+
+        DynamicServiceAnnouncement yellowStorage = new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("key", "5"));
+        dynamicStore.put(Id.random(), new DynamicAnnouncement("testing", "beta", "/a/b/c", ImmutableSet.of(yellowStorage)));
+
+        response = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage")).setHeader("If-None-Match", etag).build(),
+                createStatusResponseHandler());
+        assertThat(response.getStatusCode()).isEqualTo(200);
+        assertThat(response.getHeader("ETag")).isNotEqualTo(etag);
+    }
+
+    @Test
+    public void testGetAllNotModified()
+    {
+        when(proxyStore.filterAndGetAll(any(Iterable.class))).thenAnswer(invocationOnMock -> invocationOnMock.getArguments()[0]);
+        when(configStore.getAll()).thenAnswer((Answer<Stream<Service>>) invocation -> Stream.of());
+
+        StatusResponse response = client.execute(
+                prepareGet().setUri(uriFor("/v1/service")).build(),
+                createStatusResponseHandler());
+        String etag = response.getHeader("ETag");
+
+        response = client.execute(
+                prepareGet().setUri(uriFor("/v1/service")).setHeader("If-None-Match", etag).build(),
+                createStatusResponseHandler());
+        assertThat(response.getStatusCode()).isEqualTo(304);
+    }
+
+    @Test
+    public void testWatchTimeout()
+    {
+        when(proxyStore.get(any(String.class), any(String.class))).thenReturn(null);
+        when(configStore.get(any(String.class), any(String.class))).thenAnswer((Answer<Stream<Service>>) invocation -> Stream.of());
+
+        StatusResponse response = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage/alpha")).build(),
+                createStatusResponseHandler());
+        String version = response.getHeader("X-Discovery-Version");
+        String etag = response.getHeader("ETag");
+        assertThat(version).isNotNull();
+
+        response = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage/alpha?watch=" + version + "&timeout=100ms"))
+                        .setHeader("If-None-Match", etag)
+                        .build(),
+                createStatusResponseHandler());
+        assertThat(response.getStatusCode()).isEqualTo(304);
+        assertThat(response.getHeader("X-Discovery-Version")).isEqualTo(version);
+    }
+
+    @Test(timeOut = 10_000)
+    public void testWatchZeroTimeout()
+    {
+        when(proxyStore.get(any(String.class), any(String.class))).thenReturn(null);
+        when(configStore.get(any(String.class), any(String.class))).thenAnswer((Answer<Stream<Service>>) invocation -> Stream.of());
+
+        StatusResponse response = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage/alpha")).build(),
+                createStatusResponseHandler());
+        String version = response.getHeader("X-Discovery-Version");
+
+        // responds at once rather than holding the request until a service expires
+        response = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage/alpha?watch=" + version + "&timeout=0s")).build(),
+                createStatusResponseHandler());
+        assertThat(response.getStatusCode()).isEqualTo(200);
+        assertThat(response.getHeader("X-Discovery-Version")).isEqualTo(version);
+    }
+
+    @Test
+    public void testWatchChange()
+    {
+        when(proxyStore.get(any(String.class))).thenReturn(null);
+        when(configStore.get(any(String.class))).thenAnswer((Answer<Stream<Service>>) invocation -> Stream.of());
+
+        StatusResponse response = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage")).build(),
+                createStatusResponseHandler());
+        String version = response.getHeader("X-Discovery-Version");
+
+        Id<Node> yellowNodeId = Id.random();
+        DynamicServiceAnnouncement yellowStorage = new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("key", "5"));
+        DynamicAnnouncement yellow = new DynamicAnnouncement("testing", "beta", "/a/b/c", ImmutableSet.of(yellowStorage));
+        ScheduledExecutorService executor = newSingleThreadScheduledExecutor();
+        try {
+            executor.schedule(() -> dynamicStore.put(yellowNodeId, yellow), 100, TimeUnit.MILLISECONDS);
+
+            Map<String, Object> actual = client.execute(
+                    prepareGet().setUri(uriFor("/v1/service/storage?watch=" + version + "&timeout=30s")).build(),
+                    createJsonResponseHandler(mapCodec, OK.getStatusCode()));
+            assertThat((Iterable<Object>) actual.get("services")).contains(toServiceRepresentation(yellowNodeId, yellow, yellowStorage));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWatchStaleVersion()
+    {
+        when(proxyStore.get(any(String.class), any(String.class))).thenReturn(null);
+        when(configStore.get(any(String.class), any(String.class))).thenAnswer((Answer<Stream<Service>>) invocation -> Stream.of());
+
+        StatusResponse response = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage/alpha?watch=-1&timeout=30s")).build(),
+                createStatusResponseHandler());
+        assertThat(response.getStatusCode()).isEqualTo(200);
+    }
+
+    @Test
+    public void testSinceSnapshot()
+    {
+        when(proxyStore.get(any(String.class), any(String.class))).thenReturn(null);
+        when(configStore.get(any(String.class), any(String.class))).thenAnswer((Answer<Stream<Service>>) invocation -> Stream.of());
+
+        dynamicStore.discardChanges();
+
+        Map<String, Object> actual = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage/beta?since=1")).build(),
+                createJsonResponseHandler(mapCodec, OK.getStatusCode()));
+        assertThat(actual).isEqualTo(ImmutableMap.of(
+                "environment", "testing",
+                "snapshot", true,
+                "services", ImmutableList.of(
+                        blueStorageRepresentation
+                ),
+                "removed", ImmutableList.of()));
+    }
+
+    @Test
+    public void testSinceDelta()
+    {
+        when(proxyStore.get(any(String.class), any(String.class))).thenReturn(null);
+        when(configStore.get(any(String.class), any(String.class))).thenAnswer((Answer<Stream<Service>>) invocation -> Stream.of());
+
+        StatusResponse response = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage/alpha")).build(),
+                createStatusResponseHandler());
+        String version = response.getHeader("X-Discovery-Version");
+
+        Id<Node> yellowNodeId = Id.random();
+        DynamicServiceAnnouncement yellowStorage = new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("key", "5"));
+        DynamicAnnouncement yellow = new DynamicAnnouncement("testing", "alpha", "/a/b/c", ImmutableSet.of(yellowStorage));
+        dynamicStore.put(yellowNodeId, yellow);
+        dynamicStore.delete(Id.valueOf((String) greenStorageRepresentation.get("nodeId")));
+
+        Map<String, Object> actual = client.execute(
+                prepareGet().setUri(uriFor("/v1/service/storage/alpha?since=" + version)).build(),
+                createJsonResponseHandler(mapCodec, OK.getStatusCode()));
+        assertThat(actual).isEqualTo(ImmutableMap.of(
+                "environment", "testing",
+                "snapshot", false,
+                "services", ImmutableList.of(
+                        toServiceRepresentation(yellowNodeId, yellow, yellowStorage)
+                ),
+                "removed", ImmutableList.of(
+                        greenStorageRepresentation.get("id")
+                )));
+    }
+
     @Test
     public void testGetByTypeInitializationPending()
     {
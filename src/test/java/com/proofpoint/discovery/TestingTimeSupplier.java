@@ -21,7 +21,7 @@ import java.time.Instant;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
-class TestingTimeSupplier
+public class TestingTimeSupplier
         implements Supplier<Instant>
 {
     private final AtomicLong currentTime = new AtomicLong(System.currentTimeMillis());
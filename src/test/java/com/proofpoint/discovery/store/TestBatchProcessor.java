@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.util.concurrent.Executors.newScheduledThreadPool;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestBatchProcessor
+{
+    private final BlockingQueue<List<String>> batches = new LinkedBlockingQueue<>();
+    private CountDownLatch blocked;
+    private CountDownLatch release;
+    private BatchProcessor<String> processor;
+
+    @BeforeMethod
+    public void setup()
+    {
+        batches.clear();
+        blocked = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void teardown()
+    {
+        processor.stop();
+    }
+
+    @Test
+    public void testQueuesEveryEntry()
+            throws Exception
+    {
+        processor = new BatchProcessor<>("test", this::handle, 10, 10);
+        processor.start();
+        blockHandler();
+
+        processor.put("a1");
+        processor.put("b1");
+        processor.put("a2");
+        release.countDown();
+
+        assertThat(batches.poll(10, SECONDS)).containsExactly("a1", "b1", "a2");
+    }
+
+    @Test
+    public void testCoalescesByKey()
+            throws Exception
+    {
+        processor = BatchProcessor.builder("test", this::handle, 10, 10)
+                .setCoalescing(entry -> entry.charAt(0), (queued, entry) -> entry)
+                .build();
+        processor.start();
+        blockHandler();
+
+        processor.put("a1");
+        processor.put("b1");
+        processor.put("a2");
+        assertThat(processor.getQueueSize()).isEqualTo(2);
+        release.countDown();
+
+        assertThat(batches.poll(10, SECONDS)).containsExactly("a2", "b1");
+    }
+
+    @Test
+    public void testCoalescingQueueBoundsKeys()
+            throws Exception
+    {
+        processor = BatchProcessor.builder("test", this::handle, 10, 2)
+                .setCoalescing(entry -> entry.charAt(0), (queued, entry) -> entry)
+                .build();
+        processor.start();
+        blockHandler();
+
+        processor.put("a1");
+        processor.put("b1");
+        processor.put("b2");
+        processor.put("c1");
+        release.countDown();
+
+        assertThat(batches.poll(10, SECONDS)).containsExactly("b2", "c1");
+    }
+
+    @Test
+    public void testOverflowedKeysAreReloaded()
+            throws Exception
+    {
+        ScheduledExecutorService executor = newScheduledThreadPool(1);
+        try {
+            processor = BatchProcessor.builder("test", this::handle, 10, 2)
+                    .setCoalescing(entry -> entry.charAt(0), (queued, entry) -> entry)
+                    .setReloader(key -> key + "-current")
+                    .setSharedExecutor(executor)
+                    .build();
+            processor.start();
+            blockHandler();
+
+            processor.put("a1");
+            processor.put("b1");
+            processor.put("c1");
+            assertThat(processor.getOverflowKeyCount()).isEqualTo(1);
+            release.countDown();
+
+            assertThat(batches.poll(10, SECONDS)).containsExactly("a-current", "b1", "c1");
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSharedExecutor()
+            throws Exception
+    {
+        ScheduledExecutorService executor = newScheduledThreadPool(2);
+        try {
+            blocked = new CountDownLatch(2);
+            processor = BatchProcessor.builder("test", this::handle, 1, 10)
+                    .setSharedExecutor(executor)
+                    .setMaxInFlightBatches(2)
+                    .build();
+            processor.start();
+
+            // both batches are in flight at once
+            processor.put("-blocking");
+            processor.put("-blocking");
+            assertThat(blocked.await(10, SECONDS)).isTrue();
+
+            processor.put("a1");
+            release.countDown();
+
+            assertThat(batches.poll(10, SECONDS)).containsExactly("a1");
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLinger()
+            throws Exception
+    {
+        ScheduledExecutorService executor = newScheduledThreadPool(1);
+        try {
+            processor = BatchProcessor.builder("test", this::handle, 10, 10)
+                    .setSharedExecutor(executor)
+                    .setMaxLinger(new Duration(10, SECONDS))
+                    .build();
+            processor.start();
+
+            // the linger time is adapted to the time batches take
+            processor.put("-slow");
+            assertThat(batches.poll(10, SECONDS)).containsExactly("-slow");
+
+            processor.put("a1");
+            MILLISECONDS.sleep(50);
+            processor.put("b1");
+
+            assertThat(batches.poll(10, SECONDS)).containsExactly("a1", "b1");
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void blockHandler()
+            throws InterruptedException
+    {
+        processor.put("-blocking");
+        assertThat(blocked.await(10, SECONDS)).isTrue();
+    }
+
+    private boolean handle(Collection<String> entries)
+            throws InterruptedException
+    {
+        if (entries.contains("-blocking")) {
+            blocked.countDown();
+            release.await();
+            return true;
+        }
+        if (entries.contains("-slow")) {
+            MILLISECONDS.sleep(500);
+        }
+        batches.add(ImmutableList.copyOf(entries));
+        return true;
+    }
+}
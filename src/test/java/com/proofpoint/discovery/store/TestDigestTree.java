@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.proofpoint.discovery.Id;
+import com.proofpoint.discovery.Node;
+import com.proofpoint.discovery.Service;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static com.proofpoint.discovery.store.Entry.entry;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestDigestTree
+{
+    private static final Id<Node> NODE_ID = Id.random();
+    private static final List<Service> SERVICES = ImmutableList.of(new Service(Id.random(), NODE_ID, "type", "pool", "/location", ImmutableMap.of("http", "http://127.0.0.1")));
+
+    @Test
+    public void testEmpty()
+    {
+        DigestTree tree = new DigestTree();
+        assertThat(tree.getDigests(null)).containsOnly(0);
+        assertThat(tree.getDigests(0)).containsOnly(0);
+    }
+
+    @Test
+    public void testOrderIndependent()
+    {
+        Entry entry1 = entryOf(Id.random(), 1);
+        Entry entry2 = entryOf(Id.random(), 2);
+
+        DigestTree tree1 = new DigestTree();
+        put(tree1, entry1);
+        put(tree1, entry2);
+
+        DigestTree tree2 = new DigestTree();
+        put(tree2, entry2);
+        put(tree2, entry1);
+
+        assertThat(tree1.getDigests(null)).isEqualTo(tree2.getDigests(null));
+        assertThat(tree1.getDigests(null)).isNotEqualTo(new DigestTree().getDigests(null));
+    }
+
+    @Test
+    public void testTimestampChangesDigest()
+    {
+        Id<Node> nodeId = Id.random();
+        Entry entry = entryOf(nodeId, 1);
+        Entry renewed = entryOf(nodeId, 2);
+
+        DigestTree tree1 = new DigestTree();
+        put(tree1, entry);
+        DigestTree tree2 = new DigestTree();
+        put(tree2, entry);
+        NodeKey key = NodeKey.fromBytes(entry.getKey());
+        tree2.update(key, entry, renewed);
+
+        assertThat(tree1.getDigests(null)).isNotEqualTo(tree2.getDigests(null));
+
+        tree1.update(key, entry, renewed);
+        assertThat(tree1.getDigests(null)).isEqualTo(tree2.getDigests(null));
+    }
+
+    @Test
+    public void testRemove()
+    {
+        Entry entry = entryOf(Id.random(), 1);
+        DigestTree tree = new DigestTree();
+        put(tree, entry);
+        tree.update(NodeKey.fromBytes(entry.getKey()), entry, null);
+
+        assertThat(tree.getDigests(null)).containsOnly(0);
+        for (int bucket = 0; bucket < DigestTree.BUCKETS; bucket++) {
+            assertThat(tree.getKeys(bucket)).isEmpty();
+        }
+    }
+
+    @Test
+    public void testKeysInDifferingBucket()
+    {
+        Entry entry = entryOf(Id.random(), 1);
+        DigestTree tree = new DigestTree();
+        put(tree, entry);
+
+        long[] rootDigests = tree.getDigests(null);
+        int node = firstNonZero(rootDigests);
+        int leaf = firstNonZero(tree.getDigests(node));
+
+        assertThat(tree.getKeys(DigestTree.bucket(node, leaf))).containsExactly(NodeKey.fromBytes(entry.getKey()));
+    }
+
+    private static int firstNonZero(long[] digests)
+    {
+        for (int i = 0; i < digests.length; i++) {
+            if (digests[i] != 0) {
+                return i;
+            }
+        }
+        throw new AssertionError("no non-zero digest");
+    }
+
+    private static void put(DigestTree tree, Entry entry)
+    {
+        tree.update(NodeKey.fromBytes(entry.getKey()), null, entry);
+    }
+
+    private static Entry entryOf(Id<Node> nodeId, long timestamp)
+    {
+        return entry(nodeId.getBytes(), SERVICES, timestamp, 60_000L, "127.0.0.1");
+    }
+}
@@ -15,21 +15,180 @@
  */
 package com.proofpoint.discovery.store;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.proofpoint.discovery.DiscoveryConfig;
+import com.proofpoint.discovery.DynamicAnnouncement;
+import com.proofpoint.discovery.DynamicServiceAnnouncement;
 import com.proofpoint.discovery.DynamicStore;
+import com.proofpoint.discovery.Id;
+import com.proofpoint.discovery.Node;
+import com.proofpoint.discovery.Service;
+import com.proofpoint.discovery.ServiceChanges;
 import com.proofpoint.discovery.TestDynamicStore;
+import org.testng.annotations.Test;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.proofpoint.discovery.DynamicServiceAnnouncement.toServiceWith;
+import static org.assertj.core.api.Assertions.assertThat;
 
 public class TestDistributedStore
     extends TestDynamicStore
 {
+    private InMemoryStore localStore;
+    private List<Entry> touched;
+
     @Override
     protected DynamicStore initializeStore(DiscoveryConfig config, Supplier<Instant> timeSupplier)
     {
-        RemoteStore dummy = entry -> { };
+        touched = new ArrayList<>();
+        RemoteStore dummy = new RemoteStore()
+        {
+            @Override
+            public void put(Entry entry)
+            {
+            }
+
+            @Override
+            public void touch(Entry entry)
+            {
+                touched.add(entry);
+            }
+        };
+
+        localStore = new InMemoryStore(config, timeSupplier);
+        return new DistributedStore("dynamic", localStore, dummy, new StoreConfig(), config, timeSupplier);
+    }
+
+    @Test
+    public void testRenewalReusesServices()
+    {
+        Id<Node> nodeId = Id.random();
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("http", "http://localhost:1111")),
+                new DynamicServiceAnnouncement(Id.random(), "web", ImmutableMap.of("http", "http://localhost:2222"))
+        ));
+        store.put(nodeId, blue);
+        Entry entry = localStore.get(nodeId.getBytes());
+
+        currentTime.increment();
+        store.put(nodeId, DynamicAnnouncement.copyOf(blue).build());
+        Entry renewed = localStore.get(nodeId.getBytes());
+
+        assertThat(renewed.getTimestamp()).isGreaterThan(entry.getTimestamp());
+        assertThat(renewed.getValue()).isSameAs(entry.getValue());
+        assertThat(touched).containsExactly(renewed);
+    }
 
-        return new DistributedStore("dynamic", new InMemoryStore(config), dummy, new StoreConfig(), config, timeSupplier);
+    @Test
+    public void testChangedAnnouncementRebuildsServices()
+    {
+        Id<Node> nodeId = Id.random();
+        Id<Service> serviceId = Id.random();
+        store.put(nodeId, new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(serviceId, "storage", ImmutableMap.of("http", "http://localhost:1111"))
+        )));
+
+        currentTime.increment();
+        DynamicAnnouncement changed = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(serviceId, "storage", ImmutableMap.of("http", "http://localhost:2222"))
+        ));
+        store.put(nodeId, changed);
+
+        assertThat(store.get("storage", "poolA")).containsExactly(changed.getServiceAnnouncements().stream()
+                .map(toServiceWith(nodeId, changed.getLocation(), changed.getPool()))
+                .toArray(Service[]::new));
+        assertThat(store.get("storage", "poolA").findFirst().get().getProperties()).containsEntry("http", "http://localhost:2222");
+        assertThat(touched).isEmpty();
+    }
+
+    @Test
+    public void testRemoveExpiredEntries()
+    {
+        Id<Node> nodeId = Id.random();
+        store.put(nodeId, new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))
+        )));
+        Id<Node> renewedNodeId = Id.random();
+        DynamicAnnouncement renewed = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot2", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("http", "http://localhost:2222"))
+        ));
+        store.put(renewedNodeId, renewed);
+
+        advanceTimeBeyondMaxAge();
+        store.put(renewedNodeId, renewed);
+        ((DistributedStore) store).removeExpiredEntries();
+
+        assertThat(localStore.get(nodeId.getBytes())).isNull();
+        assertThat(localStore.get(renewedNodeId.getBytes())).isNotNull();
+    }
+
+    @Test
+    public void testWatchIgnoresOtherPool()
+    {
+        Future<?> watch = store.watch("storage", "poolA", store.getVersion("storage", "poolA"));
+
+        store.put(Id.random(), new DynamicAnnouncement("testing", "poolB", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("http", "http://localhost:1111"))
+        )));
+        assertThat(watch).isNotDone();
+
+        watch.cancel(false);
+    }
+
+    @Test
+    public void testChanges()
+    {
+        Id<Node> blueNodeId = Id.random();
+        DynamicServiceAnnouncement blueStorage = new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("http", "http://localhost:1111"));
+        DynamicAnnouncement blue = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(blueStorage));
+        store.put(blueNodeId, blue);
+        long version = store.getVersion("storage", "poolA");
+
+        Id<Node> redNodeId = Id.random();
+        DynamicAnnouncement red = new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot2", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("http", "http://localhost:2222"))
+        ));
+        store.put(redNodeId, red);
+        store.put(Id.random(), new DynamicAnnouncement("testing", "poolB", "/US/West/SC4/rack1/host1/vm1/slot3", ImmutableSet.of(
+                new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("http", "http://localhost:3333"))
+        )));
+        currentTime.increment();
+        store.delete(blueNodeId);
+
+        ServiceChanges changes = store.getChanges("storage", "poolA", version);
+        assertThat(changes.getServices()).containsExactlyElementsOf(red.getServiceAnnouncements().stream()
+                .map(toServiceWith(redNodeId, red.getLocation(), red.getPool()))
+                .collect(Collectors.toList()));
+        assertThat(changes.getRemoved()).containsExactly(blueStorage.getId());
+
+        assertThat(store.getChanges("storage", version).getServices()).hasSize(2);
+        assertThat(store.getChanges("storage", "poolA", store.getVersion("storage", "poolA")).getServices()).isEmpty();
+    }
+
+    @Test
+    public void testChangesIncludeExpired()
+    {
+        DynamicServiceAnnouncement blueStorage = new DynamicServiceAnnouncement(Id.random(), "storage", ImmutableMap.of("http", "http://localhost:1111"));
+        store.put(Id.random(), new DynamicAnnouncement("testing", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableSet.of(blueStorage)));
+        long version = store.getVersion("storage", "poolA");
+
+        advanceTimeBeyondMaxAge();
+
+        ServiceChanges changes = store.getChanges("storage", "poolA", version);
+        assertThat(changes.getServices()).isEmpty();
+        assertThat(changes.getRemoved()).containsExactly(blueStorage.getId());
+    }
+
+    @Test
+    public void testChangesUnavailable()
+    {
+        assertThat(store.getChanges("storage", "poolA", 1)).isNull();
     }
 }
@@ -38,6 +38,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 public class TestEntry
 {
     private static final JsonCodec<Entry> ENTRY_CODEC = jsonCodec(Entry.class);
+    private static final JsonCodec<RawEntry> RAW_ENTRY_CODEC = jsonCodec(RawEntry.class);
     private static final JsonCodec<List<Service>> SERVICE_LIST_CODEC = JsonCodec.listJsonCodec(Service.class);
     private static final Id<Node> NODE_ID = Id.valueOf("e8e71280-2325-4498-87a7-7f7d7d48defd");
     private static final Id<Service> SERVICE_ID_1 = Id.valueOf("efab997e-14b8-4f5a-b534-b3e70bfb8bd4");
@@ -116,6 +117,18 @@ public class TestEntry
         assertThat(assertValidates(decodeJson(ENTRY_CODEC, jsonStructure))).isEqualTo(TOMBSTONE_ENTRY_2);
     }
 
+    @Test
+    public void testRawJsonDecode()
+    {
+        RawEntry rawEntry = decodeJson(RAW_ENTRY_CODEC, jsonStructure);
+        assertThat(rawEntry.getTimestamp()).isEqualTo(6789L);
+        assertThat(rawEntry.isTombstone()).isFalse();
+        assertThat(rawEntry.decode()).isEqualTo(ENTRY);
+
+        jsonStructure.remove("value");
+        assertThat(decodeJson(RAW_ENTRY_CODEC, jsonStructure).isTombstone()).isTrue();
+    }
+
     @Test
     public void testJsonEncode()
     {
@@ -134,4 +147,13 @@ public class TestEntry
         assertJsonEncode(TOMBSTONE_ENTRY, jsonStructure);
         assertJsonEncode(TOMBSTONE_ENTRY_2, jsonStructure);
     }
+
+    @Test
+    public void testRenew()
+    {
+        Entry renewed = ENTRY_2.renew(9876L, 54321L);
+        assertThat(renewed).isEqualTo(entry(NODE_ID.getBytes(), SERVICES_LIST, 9876L, 54321L, "127.0.0.1"));
+        assertThat(renewed.getValue()).isSameAs(ENTRY_2.getValue());
+        assertThat(renewed.getContentHash()).isEqualTo(Entries.contentHash(ENTRY_2));
+    }
 }
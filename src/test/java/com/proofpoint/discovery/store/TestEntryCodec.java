@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.proofpoint.discovery.Id;
+import com.proofpoint.discovery.Node;
+import com.proofpoint.discovery.Service;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.proofpoint.discovery.store.Entry.entry;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestEntryCodec
+{
+    private static final Id<Node> NODE_ID = Id.random();
+    private static final ImmutableList<Service> SERVICES_LIST = ImmutableList.of(
+            new Service(Id.random(), NODE_ID, "testType", "testPool", "testLocation", ImmutableMap.of(
+                    "http", "http://invalid.invalid",
+                    "https", "https://invalid.invalid"
+            )),
+            new Service(Id.random(), null, "testType2", "testPool2", "testLocation2", ImmutableMap.of())
+    );
+    private static final Entry ENTRY = entry(NODE_ID.getBytes(), SERVICES_LIST, 6789L, 12345L, "127.0.0.1");
+    private static final Entry ENTRY_NO_ANNOUNCER = entry(Id.random().getBytes(), SERVICES_LIST, 6789L, 12345L, null);
+    private static final Entry TOMBSTONE = entry(Id.random().getBytes(), (List<Service>) null, 6789L, null, null);
+
+    @Test
+    public void testRoundTrip()
+            throws IOException
+    {
+        List<Entry> entries = EntryCodec.readEntries(new ByteArrayInputStream(EntryCodec.toBytes(ImmutableList.of(ENTRY, ENTRY_NO_ANNOUNCER, TOMBSTONE))));
+
+        assertThat(entries).containsExactly(ENTRY, ENTRY_NO_ANNOUNCER, TOMBSTONE);
+        assertThat(Entries.sameServices(entries.get(0).getValue(), SERVICES_LIST)).isTrue();
+        assertThat(entries.get(2).getValue()).isNull();
+    }
+
+    @Test
+    public void testEmpty()
+            throws IOException
+    {
+        assertThat(EntryCodec.readEntries(new ByteArrayInputStream(EntryCodec.toBytes(ImmutableList.of())))).isEmpty();
+        assertThat(EntryCodec.readEntries(new ByteArrayInputStream(new byte[0]))).isEmpty();
+    }
+
+    @Test
+    public void testStreaming()
+            throws IOException
+    {
+        List<Entry> entries = new ArrayList<>();
+        EntryCodec.readEntries(new ByteArrayInputStream(EntryCodec.toBytes(ImmutableList.of(ENTRY, TOMBSTONE))), (key, timestamp) -> true, entries::add);
+
+        assertThat(entries).containsExactly(ENTRY, TOMBSTONE);
+    }
+
+    @Test
+    public void testFilter()
+            throws IOException
+    {
+        byte[] bytes = EntryCodec.toBytes(ImmutableList.of(ENTRY, ENTRY_NO_ANNOUNCER, TOMBSTONE));
+        List<Entry> entries = EntryCodec.readEntries(new ByteArrayInputStream(bytes), (key, timestamp) -> !Arrays.equals(key, ENTRY.getKey()));
+
+        assertThat(entries).containsExactly(ENTRY_NO_ANNOUNCER, TOMBSTONE);
+    }
+
+    @Test
+    public void testConcatenatedSegments()
+            throws IOException
+    {
+        byte[] bytes = EntryCodec.concatenate(ImmutableList.of(EntryCodec.encode(ENTRY, false), EntryCodec.encode(ENTRY_NO_ANNOUNCER, true), EntryCodec.encode(TOMBSTONE, false)));
+
+        assertThat(EntryCodec.readEntries(new ByteArrayInputStream(bytes))).containsExactly(ENTRY, ENTRY_NO_ANNOUNCER, TOMBSTONE);
+        assertThat(EntryCodec.readEntries(new ByteArrayInputStream(EntryCodec.concatenate(ImmutableList.of())))).isEmpty();
+    }
+
+    @Test
+    public void testConcatenatedTouches()
+            throws IOException
+    {
+        Touch touch = Touch.touchOf(ENTRY);
+        Touch noMaxAge = Touch.touchOf(TOMBSTONE);
+        byte[] bytes = EntryCodec.concatenate(ImmutableList.of(EntryCodec.encode(touch), EntryCodec.encode(noMaxAge)));
+
+        List<Touch> touches = new ObjectMapper(new SmileFactory()).readValue(bytes, new TypeReference<List<Touch>>() {});
+        assertThat(touches).containsExactly(touch, noMaxAge);
+    }
+
+    @Test
+    public void testCompactKeys()
+            throws IOException
+    {
+        Entry legacyKey = entry("legacy".getBytes(UTF_8), SERVICES_LIST, 6789L, 12345L, null);
+        byte[] bytes = EntryCodec.toBytes(ImmutableList.of(ENTRY, legacyKey, TOMBSTONE), true);
+
+        assertThat(bytes.length).isLessThan(EntryCodec.toBytes(ImmutableList.of(ENTRY, legacyKey, TOMBSTONE)).length);
+        assertThat(EntryCodec.readEntries(new ByteArrayInputStream(bytes))).containsExactly(ENTRY, legacyKey, TOMBSTONE);
+
+        List<Entry> entries = EntryCodec.readEntries(new ByteArrayInputStream(bytes), (key, timestamp) -> !Arrays.equals(key, ENTRY.getKey()));
+        assertThat(entries).containsExactly(legacyKey, TOMBSTONE);
+    }
+}
@@ -22,6 +22,7 @@ import com.proofpoint.discovery.Id;
 import com.proofpoint.discovery.Node;
 import com.proofpoint.discovery.Service;
 import com.proofpoint.http.client.HttpClient;
+import com.proofpoint.http.client.Request;
 import com.proofpoint.http.client.jetty.JettyHttpClient;
 import com.proofpoint.node.NodeInfo;
 import com.proofpoint.reporting.ReportExporter;
@@ -32,7 +33,9 @@ import org.testng.annotations.AfterClass;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.proofpoint.discovery.DiscoveryConfig.ReplicationMode.PHASE_ONE;
 import static com.proofpoint.discovery.DiscoveryConfig.ReplicationMode.PHASE_THREE;
@@ -41,7 +44,9 @@ import static com.proofpoint.discovery.store.Entry.entry;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class TestHttpRemoteStore
 {
@@ -77,6 +82,7 @@ public class TestHttpRemoteStore
 
     private TestingStoreServer server;
     private InMemoryStore serverStore;
+    private InMemoryStore localStore;
     private SerialScheduledExecutorService executor;
     private HttpRemoteStore store;
 
@@ -223,6 +229,65 @@ public class TestHttpRemoteStore
         assertThat(serverStore.getAll()).containsExactlyInAnyOrder(expectedServerEntry, TESTING_TOMBSTONE);
     }
 
+    @Test
+    public void testTouch()
+            throws InterruptedException
+    {
+        createStore(new DiscoveryConfig(), true, new DiscoveryConfig());
+        store.put(TESTING_ENTRY);
+        Thread.sleep(1000);
+
+        Entry renewed = entry(NODE_ID.getBytes(), TESTING_ENTRY.getValue(), TESTING_ENTRY.getTimestamp() + 1, 2_000_000L, "127.0.0.1");
+        store.touch(renewed);
+        Thread.sleep(1000);
+
+        assertThat(serverStore.getAll()).containsExactly(renewed);
+        assertThat(serverStore.get(NODE_ID.getBytes()).getTimestamp()).isEqualTo(renewed.getTimestamp());
+    }
+
+    @Test
+    public void testTouchSendsUnmatchedEntry()
+            throws InterruptedException
+    {
+        createStore(new DiscoveryConfig(), true, new DiscoveryConfig());
+        store.touch(TESTING_ENTRY);
+        Thread.sleep(1000);
+
+        assertThat(serverStore.getAll()).containsExactly(TESTING_ENTRY);
+    }
+
+    @Test
+    public void testCatchUpAfterPeerRecovers()
+            throws Exception
+    {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        HttpClient flakyClient = mock(HttpClient.class);
+        when(flakyClient.execute(any(Request.class), any())).thenAnswer(invocation -> {
+            if (failing.get()) {
+                throw new IOException("peer is down");
+            }
+            return client.execute(invocation.getArgument(0), invocation.getArgument(1));
+        });
+        createStore(flakyClient, new DiscoveryConfig(), true, new DiscoveryConfig());
+
+        localStore.put(TESTING_ENTRY);
+        store.put(TESTING_ENTRY);
+        Thread.sleep(500);
+
+        // discarded while backing off from the peer
+        localStore.put(TESTING_TOMBSTONE);
+        store.put(TESTING_TOMBSTONE);
+        failing.set(false);
+        Thread.sleep(1000);
+
+        Entry entry = entry(Id.random().getBytes(), ImmutableList.of(TESTING_SERVICE_1), System.currentTimeMillis(), 2_000_000L, "127.0.0.1");
+        localStore.put(entry);
+        store.put(entry);
+        Thread.sleep(1000);
+
+        assertThat(serverStore.getAll()).containsExactlyInAnyOrder(TESTING_ENTRY, TESTING_TOMBSTONE, entry);
+    }
+
     @Test
     public void testReplicationToAddedServer()
             throws InterruptedException
@@ -260,14 +325,21 @@ public class TestHttpRemoteStore
     }
 
     private void createStore(DiscoveryConfig serverConfig, boolean serverInSelector, DiscoveryConfig discoveryConfig)
+    {
+        createStore(client, serverConfig, serverInSelector, discoveryConfig);
+    }
+
+    private void createStore(HttpClient client, DiscoveryConfig serverConfig, boolean serverInSelector, DiscoveryConfig discoveryConfig)
     {
         server = new TestingStoreServer(new StoreConfig(), serverConfig);
         serverStore = server.getInMemoryStore();
         server.setServerInSelector(serverInSelector);
         executor = new SerialScheduledExecutorService();
+        localStore = new InMemoryStore();
         store = new HttpRemoteStore("dynamic",
                 new NodeInfo("test_environment"),
                 server.getServiceSelector(),
+                localStore,
                 new StoreConfig().setRemoteUpdateInterval(new Duration(5, SECONDS)),
                 client,
                 mock(ReportExporter.class),
@@ -17,6 +17,7 @@ package com.proofpoint.discovery.store;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.proofpoint.discovery.DiscoveryConfig;
 import com.proofpoint.discovery.Id;
 import com.proofpoint.discovery.Node;
@@ -25,12 +26,15 @@ import com.proofpoint.units.Duration;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static com.proofpoint.discovery.store.Entry.entry;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.testng.Assert.assertFalse;
@@ -51,7 +55,7 @@ public class TestInMemoryStore
     protected void setUp()
     {
         DiscoveryConfig config = new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES));
-        store = new InMemoryStore(config);
+        store = new InMemoryStore(config, Instant::now);
         updateListener = mock(UpdateListener.class);
         store.setUpdateListener(updateListener);
     }
@@ -131,7 +135,7 @@ public class TestInMemoryStore
     @Test
     public void testUpdateNoListener()
     {
-        store = new InMemoryStore(new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)));
+        store = new InMemoryStore(new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES)), Instant::now);
         Entry entry1 = entryOf(SERVICE_LIST_2, 1);
         assertTrue(store.put(entry1));
 
@@ -177,6 +181,326 @@ public class TestInMemoryStore
         verifyNoMoreInteractions(updateListener);
     }
 
+    @Test
+    public void testIndexedByTypeAndPool()
+    {
+        Entry entry = entryOf(SERVICE_LIST_1, 1);
+        store.put(entry);
+
+        assertThat(store.getByTypeAndPool("type1", "test-pool")).containsExactly(entry);
+        assertThat(store.getByTypeAndPool("type2", "test-pool")).containsExactly(entry);
+        assertThat(store.getByTypeAndPool("type1", "other-pool")).isEmpty();
+        assertThat(store.getByTypeAndPool("unknown", "test-pool")).isEmpty();
+        assertThat(store.getByType("type1")).containsOnlyKeys("test-pool");
+        assertThat(store.getByType("type1").get("test-pool")).containsExactly(entry);
+        assertThat(store.getByType("unknown")).isEmpty();
+    }
+
+    @Test
+    public void testIndexFollowsUpdate()
+    {
+        store.put(entryOf(SERVICE_LIST_1, 1));
+        Entry entry2 = entryOf(SERVICE_LIST_2, 2);
+        store.put(entry2);
+
+        assertThat(store.getByTypeAndPool("type1", "test-pool")).isEmpty();
+        assertThat(store.getByTypeAndPool("type2", "test-pool")).containsExactly(entry2);
+    }
+
+    @Test
+    public void testIndexIgnoresLosingUpdate()
+    {
+        Entry entry2 = entryOf(SERVICE_LIST_2, 2);
+        store.put(entry2);
+        store.put(entryOf(SERVICE_LIST_1, 1));
+
+        assertThat(store.getByTypeAndPool("type1", "test-pool")).isEmpty();
+        assertThat(store.getByTypeAndPool("type2", "test-pool")).containsExactly(entry2);
+    }
+
+    @Test
+    public void testIndexFollowsDelete()
+    {
+        Entry entry = entryOf(SERVICE_LIST_1, 1);
+        store.put(entry);
+        store.delete(NODE_ID.getBytes(), entry.getTimestamp());
+
+        assertThat(store.getByTypeAndPool("type1", "test-pool")).isEmpty();
+        assertThat(store.getByTypeAndPool("type2", "test-pool")).isEmpty();
+    }
+
+    @Test
+    public void testTombstoneNotIndexed()
+    {
+        store.put(entryOf(SERVICE_LIST_1, 1));
+        store.put(entryOf(null, 2));
+
+        assertThat(store.getByTypeAndPool("type1", "test-pool")).isEmpty();
+        assertThat(store.getByTypeAndPool("type2", "test-pool")).isEmpty();
+    }
+
+    @Test
+    public void testVersionAdvancesOnChange()
+    {
+        store.put(entryOf(SERVICE_LIST_1, 1));
+        long type1Version = store.getVersion("type1", "test-pool");
+        long type2Version = store.getVersion("type2", "test-pool");
+        assertThat(type1Version).isPositive();
+        assertThat(store.getVersion("type1")).isEqualTo(type1Version);
+
+        store.put(entryOf(SERVICE_LIST_2, 2));
+        assertThat(store.getVersion("type1", "test-pool")).isGreaterThan(type1Version);
+        assertThat(store.getVersion("type2", "test-pool")).isGreaterThan(type2Version);
+        assertThat(store.getVersion()).isEqualTo(store.getVersion("type1", "test-pool"));
+        assertThat(store.getVersion("unknown", "test-pool")).isZero();
+    }
+
+    @Test
+    public void testVersionIgnoresRenewal()
+    {
+        store.put(entryOf(SERVICE_LIST_1, 1));
+        long version = store.getVersion();
+
+        store.put(entryOf(ImmutableList.copyOf(SERVICE_LIST_1), 2));
+        assertThat(store.getVersion()).isEqualTo(version);
+
+        Service changed = new Service(TESTING_SERVICE_1.getId(), NODE_ID, "type1", "test-pool", "/test-location", ImmutableMap.of("http", "http://127.0.0.2"));
+        store.put(entryOf(ImmutableList.of(changed, TESTING_SERVICE_2), 3));
+        assertThat(store.getVersion()).isGreaterThan(version);
+    }
+
+    @Test
+    public void testVersionAdvancesOnRenewalOfExpired()
+    {
+        store.put(entryOf(SERVICE_LIST_1, 1));
+        long version = store.getVersion();
+
+        store.put(entryOf(SERVICE_LIST_1, 60_002));
+        assertThat(store.getVersion()).isGreaterThan(version);
+    }
+
+    @Test
+    public void testVersionAdvancesOnDelete()
+    {
+        Entry entry = entryOf(SERVICE_LIST_1, 1);
+        store.put(entry);
+        long version = store.getVersion("type1", "test-pool");
+
+        store.delete(NODE_ID.getBytes(), entry.getTimestamp());
+        assertThat(store.getVersion("type1", "test-pool")).isGreaterThan(version);
+    }
+
+    @Test
+    public void testChanges()
+    {
+        store.put(entryOf(SERVICE_LIST_1, 1));
+        long version = store.getVersion("type1", "test-pool");
+        store.put(entryOf(SERVICE_LIST_2, 2));
+
+        ServiceIndex.Changes changes = store.getChanges("type1", "test-pool", version);
+        assertThat(changes.getKeys()).containsExactly(NodeKey.of(NODE_ID));
+        assertThat(changes.getRemoved()).containsExactly(TESTING_SERVICE_1.getId());
+
+        changes = store.getChanges("type2", null, version);
+        assertThat(changes.getKeys()).containsExactly(NodeKey.of(NODE_ID));
+        assertThat(changes.getRemoved()).isEmpty();
+
+        assertThat(store.getChanges("type1", "test-pool", store.getVersion() + 1)).isNull();
+    }
+
+    @Test
+    public void testChangesDiscarded()
+    {
+        long version = store.getVersion("type1", "test-pool");
+        for (int i = 0; i < 1001; i++) {
+            Service service = new Service(Id.random(), NODE_ID, "type1", "test-pool", "/test-location", ImmutableMap.of());
+            store.put(entryOf(ImmutableList.of(service), i + 1));
+        }
+
+        assertThat(store.getChanges("type1", "test-pool", version)).isNull();
+        assertThat(store.getChanges("type1", "test-pool", version + 1)).isNotNull();
+    }
+
+    @Test
+    public void testChangeListener()
+    {
+        ChangeListener changeListener = mock(ChangeListener.class);
+        store.addChangeListener(changeListener);
+
+        Entry entry = entryOf(SERVICE_LIST_1, 1);
+        store.put(entry);
+        verify(changeListener).notifyChange("type1", "test-pool");
+        verify(changeListener).notifyChange("type2", "test-pool");
+
+        store.put(entryOf(SERVICE_LIST_1, 2));
+        verifyNoMoreInteractions(changeListener);
+
+        store.delete(NODE_ID.getBytes(), 2);
+        verify(changeListener, times(2)).notifyChange("type1", "test-pool");
+        verify(changeListener, times(2)).notifyChange("type2", "test-pool");
+        verifyNoMoreInteractions(changeListener);
+    }
+
+    @Test
+    public void testTouch()
+    {
+        Entry entry = entryOf(SERVICE_LIST_1, 1);
+        store.put(entry);
+        long version = store.getVersion();
+
+        assertTrue(store.touch(Touch.touchOf(entryOf(SERVICE_LIST_1, 2))));
+
+        Entry touched = store.get(NODE_ID.getBytes());
+        assertThat(touched.getTimestamp()).isEqualTo(2);
+        assertThat(touched.getValue()).isSameAs(entry.getValue());
+        assertThat(store.getVersion()).isEqualTo(version);
+        verify(updateListener).notifyUpdate(entry, touched);
+        verifyNoMoreInteractions(updateListener);
+    }
+
+    @Test
+    public void testTouchOlderTimestamp()
+    {
+        Entry entry = entryOf(SERVICE_LIST_1, 5);
+        store.put(entry);
+
+        assertTrue(store.touch(Touch.touchOf(entryOf(SERVICE_LIST_1, 2))));
+
+        assertThat(store.get(NODE_ID.getBytes())).isEqualTo(entry);
+        verifyNoMoreInteractions(updateListener);
+    }
+
+    @Test
+    public void testTouchContentMismatch()
+    {
+        Entry entry = entryOf(SERVICE_LIST_2, 1);
+        store.put(entry);
+
+        assertFalse(store.touch(Touch.touchOf(entryOf(SERVICE_LIST_1, 2))));
+
+        assertThat(store.get(NODE_ID.getBytes())).isEqualTo(entry);
+        verifyNoMoreInteractions(updateListener);
+    }
+
+    @Test
+    public void testTouchMissingEntry()
+    {
+        assertFalse(store.touch(Touch.touchOf(entryOf(SERVICE_LIST_1, 2))));
+
+        assertThat(store.get(NODE_ID.getBytes())).isNull();
+        verifyNoMoreInteractions(updateListener);
+    }
+
+    @Test
+    public void testTouchTombstone()
+    {
+        store.put(entry(NODE_ID.getBytes(), (List<Service>) null, 1, null, null));
+
+        assertFalse(store.touch(Touch.touchOf(entryOf(SERVICE_LIST_1, 2))));
+    }
+
+    @Test
+    public void testWouldReplace()
+    {
+        assertTrue(store.wouldReplace(NODE_ID.getBytes(), 1));
+
+        store.put(entryOf(SERVICE_LIST_1, 2));
+        assertFalse(store.wouldReplace(NODE_ID.getBytes(), 1));
+        assertFalse(store.wouldReplace(NODE_ID.getBytes(), 2));
+        assertTrue(store.wouldReplace(NODE_ID.getBytes(), 3));
+    }
+
+    @Test
+    public void testGetPage()
+    {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Entry entry = entry(Id.random().getBytes(), SERVICE_LIST_1, 1, 60_000L, "127.0.0.1");
+            store.put(entry);
+            entries.add(entry);
+        }
+        store.delete(entries.get(4).getKey(), 1);
+        entries.remove(4);
+
+        List<Entry> firstPage = store.getPage(null, 3, entry -> true);
+        assertThat(firstPage).hasSize(3);
+        List<Entry> secondPage = store.getPage(firstPage.get(2).getKey(), 3, entry -> true);
+        assertThat(secondPage).hasSize(1);
+
+        assertThat(Iterables.concat(firstPage, secondPage)).containsExactlyInAnyOrderElementsOf(entries);
+        assertThat(store.getPage(secondPage.get(0).getKey(), 3, entry -> true)).isEmpty();
+        assertThat(store.getPage(null, 3, entry -> entry != entries.get(0))).hasSize(3).doesNotContain(entries.get(0));
+    }
+
+    @Test
+    public void testDigestBuckets()
+    {
+        Entry entry = entryOf(SERVICE_LIST_1, 1);
+        store.put(entry);
+
+        List<Entry> entries = new ArrayList<>();
+        for (int node = 0; node < DigestTree.FANOUT; node++) {
+            long[] digests = store.getDigests(node);
+            for (int leaf = 0; leaf < DigestTree.FANOUT; leaf++) {
+                if (digests[leaf] != 0) {
+                    entries.addAll(store.getBuckets(ImmutableList.of(DigestTree.bucket(node, leaf))));
+                }
+            }
+        }
+        assertThat(entries).containsExactly(entry);
+
+        store.delete(NODE_ID.getBytes(), 1);
+        assertThat(store.getDigests(null)).containsOnly(0);
+    }
+
+    @Test
+    public void testGetExpired()
+    {
+        Entry entry = entryOf(SERVICE_LIST_1, 1);
+        store.put(entry);
+        Entry tombstone = entry(Id.random().getBytes(), (List<Service>) null, 100_000, null, null);
+        store.put(tombstone);
+
+        assertThat(store.getExpired(60_001, 100_000)).isEmpty();
+        assertThat(store.getExpired(60_002, 100_000)).extracting(ExpiryIndex.Deadline::getKey).containsExactly(NodeKey.fromBytes(entry.getKey()));
+        assertThat(store.getExpired(100_002, 1)).extracting(ExpiryIndex.Deadline::getKey).containsExactly(NodeKey.fromBytes(entry.getKey()), NodeKey.fromBytes(tombstone.getKey()));
+
+        // a renewal moves the deadline
+        store.put(entryOf(SERVICE_LIST_1, 2));
+        assertThat(store.getExpired(60_002, 100_000)).isEmpty();
+
+        store.delete(NODE_ID.getBytes(), 2);
+        assertThat(store.getExpired(Long.MAX_VALUE, 100_000)).extracting(ExpiryIndex.Deadline::getKey).containsOnly(NodeKey.fromBytes(tombstone.getKey()));
+    }
+
+    @Test
+    public void testStats()
+    {
+        store.put(entryOf(SERVICE_LIST_1, 1));
+        store.put(entry(Id.random().getBytes(), (List<Service>) null, 1, null, null));
+
+        StoreStats stats = store.getStats();
+        assertThat(stats.getEntryCount()).isEqualTo(1);
+        assertThat(stats.getTombstoneCount()).isEqualTo(1);
+        assertThat(stats.getServiceCounts()).isEqualTo(ImmutableMap.of("type1", 1L, "type2", 1L));
+        long size = stats.getApproximateSizeInBytes();
+        assertThat(size).isPositive();
+
+        store.put(entryOf(SERVICE_LIST_1, 2));
+        assertThat(stats.getEntryCount()).isEqualTo(1);
+        assertThat(stats.getServiceCounts()).isEqualTo(ImmutableMap.of("type1", 1L, "type2", 1L));
+        assertThat(stats.getApproximateSizeInBytes()).isEqualTo(size);
+
+        store.put(entryOf(SERVICE_LIST_2, 3));
+        assertThat(stats.getEntryCount()).isEqualTo(1);
+        assertThat(stats.getServiceCounts()).isEqualTo(ImmutableMap.of("type2", 1L));
+        assertThat(stats.getApproximateSizeInBytes()).isLessThan(size);
+
+        store.delete(NODE_ID.getBytes(), 3);
+        assertThat(stats.getEntryCount()).isZero();
+        assertThat(stats.getServiceCounts()).isEmpty();
+    }
+
     private static Entry entryOf(List<Service> value, long timestamp)
     {
         return entry(NODE_ID.getBytes(), value, timestamp, 60_000L, "127.0.0.1");
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.proofpoint.discovery.Id;
+import com.proofpoint.discovery.Node;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestNodeKey
+{
+    @Test
+    public void testNodeId()
+    {
+        Id<Node> nodeId = Id.random();
+        NodeKey key = NodeKey.of(nodeId);
+        NodeKey parsed = NodeKey.fromBytes(nodeId.getBytes());
+
+        assertThat(key.isNodeId()).isTrue();
+        assertThat(parsed.isNodeId()).isTrue();
+        assertThat(parsed).isEqualTo(key);
+        assertThat(parsed.hashCode()).isEqualTo(key.hashCode());
+        assertThat(key.getBytes()).isEqualTo(nodeId.getBytes());
+        assertThat(key.toString()).isEqualTo(nodeId.toString());
+        assertThat(NodeKey.fromUuidBytes(key.toUuidBytes())).isEqualTo(key);
+    }
+
+    @Test
+    public void testBytesAreShared()
+    {
+        byte[] bytes = Id.random().getBytes();
+        assertThat(NodeKey.fromBytes(bytes).getBytes()).isSameAs(bytes);
+    }
+
+    @Test
+    public void testLegacyKeys()
+    {
+        Id<Node> nodeId = Id.random();
+        byte[] upperCase = nodeId.toString().toUpperCase(Locale.ENGLISH).getBytes(UTF_8);
+
+        for (byte[] bytes : new byte[][] {upperCase, "legacy".getBytes(UTF_8), nodeId.toString().replace('-', '_').getBytes(UTF_8), new byte[0]}) {
+            NodeKey key = NodeKey.fromBytes(bytes);
+            assertThat(key.isNodeId()).isFalse();
+            assertThat(key.getBytes()).isSameAs(bytes);
+            assertThat(key).isEqualTo(NodeKey.fromBytes(bytes.clone()));
+            assertThat(key.hashCode()).isEqualTo(NodeKey.fromBytes(bytes.clone()).hashCode());
+        }
+        assertThat(NodeKey.fromBytes(upperCase)).isNotEqualTo(NodeKey.of(nodeId));
+    }
+
+    @Test
+    public void testOrder()
+    {
+        List<NodeKey> keys = new ArrayList<>();
+        List<String> nodeIds = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Id<Node> nodeId = Id.random();
+            keys.add(NodeKey.of(nodeId));
+            nodeIds.add(nodeId.toString());
+        }
+        NodeKey legacy = NodeKey.fromBytes("legacy".getBytes(UTF_8));
+        keys.add(legacy);
+
+        Collections.sort(keys);
+        Collections.sort(nodeIds);
+
+        // node ids are in the order of their string form, followed by other keys
+        assertThat(keys.subList(0, nodeIds.size())).extracting(NodeKey::toString).containsExactlyElementsOf(nodeIds);
+        assertThat(keys.get(keys.size() - 1)).isSameAs(legacy);
+    }
+}
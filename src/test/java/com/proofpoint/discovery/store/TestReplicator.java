@@ -23,6 +23,7 @@ import com.proofpoint.discovery.InitializationTracker;
 import com.proofpoint.discovery.Node;
 import com.proofpoint.discovery.Service;
 import com.proofpoint.http.client.HttpClient;
+import com.proofpoint.http.client.Request;
 import com.proofpoint.http.client.balancing.HttpServiceBalancerStats;
 import com.proofpoint.http.client.jetty.JettyHttpClient;
 import com.proofpoint.node.NodeInfo;
@@ -41,9 +42,14 @@ import static com.proofpoint.discovery.DiscoveryConfig.ReplicationMode.PHASE_ONE
 import static com.proofpoint.discovery.DiscoveryConfig.ReplicationMode.PHASE_THREE;
 import static com.proofpoint.discovery.DiscoveryConfig.ReplicationMode.PHASE_TWO;
 import static com.proofpoint.discovery.store.Entry.entry;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class TestReplicator
 {
@@ -280,7 +286,108 @@ public class TestReplicator
         assertThat(inMemoryStore.getAll()).containsExactlyInAnyOrder(TESTING_ENTRY, TESTING_TOMBSTONE);
     }
 
+    @Test
+    public void testReplicationPaged()
+    {
+        replicator = createReplicator(new StoreConfig().setReplicationInterval(new Duration(1, SECONDS)).setReplicationPageSize(1),
+                new DiscoveryConfig(),
+                true,
+                new DiscoveryConfig(),
+                TESTING_ENTRY,
+                TESTING_TOMBSTONE);
+
+        assertThat(inMemoryStore.getAll()).containsExactlyInAnyOrder(TESTING_ENTRY, TESTING_TOMBSTONE);
+    }
+
+    @Test
+    public void testReplicationSerialPulls()
+    {
+        replicator = createReplicator(new StoreConfig().setReplicationInterval(new Duration(1, SECONDS)).setReplicationConcurrency(1),
+                new DiscoveryConfig(),
+                true,
+                new DiscoveryConfig(),
+                TESTING_ENTRY,
+                TESTING_TOMBSTONE);
+
+        assertThat(inMemoryStore.getAll()).containsExactlyInAnyOrder(TESTING_ENTRY, TESTING_TOMBSTONE);
+
+        Entry newEntry = entry(Id.random().getBytes(), ImmutableList.of(TESTING_SERVICE_2), System.currentTimeMillis(), 3_600_000L, "127.0.0.1");
+        serverStore.put(newEntry);
+        executor.elapseTime(1, SECONDS);
+
+        assertThat(inMemoryStore.getAll()).containsExactlyInAnyOrder(TESTING_ENTRY, TESTING_TOMBSTONE, newEntry);
+    }
+
+    @Test
+    public void testReplicationTimeoutAppliesPerPage()
+    {
+        HttpClient slowClient = mock(HttpClient.class);
+        when(slowClient.execute(any(Request.class), any())).thenAnswer(invocation -> {
+            Thread.sleep(200);
+            return client.execute(invocation.getArgument(0), invocation.getArgument(1));
+        });
+        Entry otherEntry = entry(Id.random().getBytes(), ImmutableList.of(TESTING_SERVICE_2), System.currentTimeMillis(), 3_600_000L, "127.0.0.1");
+
+        // the pull of three pages takes longer than the timeout, but none of its requests do
+        replicator = createReplicator(slowClient,
+                new StoreConfig().setReplicationInterval(new Duration(1, SECONDS)).setReplicationPageSize(1).setReplicationTimeout(new Duration(500, MILLISECONDS)),
+                new DiscoveryConfig(),
+                true,
+                new DiscoveryConfig(),
+                TESTING_ENTRY,
+                TESTING_TOMBSTONE,
+                otherEntry);
+
+        assertThat(inMemoryStore.getAll()).containsExactlyInAnyOrder(TESTING_ENTRY, TESTING_TOMBSTONE, otherEntry);
+    }
+
+    @Test
+    public void testIncrementalReplication()
+    {
+        replicator = createReplicator(new StoreConfig().setReplicationInterval(new Duration(1, SECONDS)).setFullReplicationInterval(new Duration(1, HOURS)),
+                new DiscoveryConfig(),
+                true,
+                new DiscoveryConfig(),
+                TESTING_ENTRY);
+
+        Entry oldEntry = entry(Id.random().getBytes(), ImmutableList.of(TESTING_SERVICE_1), System.currentTimeMillis() - 600_000, 3_600_000L, "127.0.0.1");
+        Entry newEntry = entry(Id.random().getBytes(), ImmutableList.of(TESTING_SERVICE_2), System.currentTimeMillis(), 3_600_000L, "127.0.0.1");
+        serverStore.put(oldEntry);
+        serverStore.put(newEntry);
+        executor.elapseTime(1, SECONDS);
+
+        assertThat(inMemoryStore.getAll()).containsExactlyInAnyOrder(TESTING_ENTRY, newEntry);
+    }
+
+    @Test
+    public void testDigestReplication()
+    {
+        Entry staleEntry = entry(TESTING_ENTRY.getKey(), TESTING_ENTRY.getValue(), TESTING_ENTRY.getTimestamp() - 1, 20_000L, "127.0.0.1");
+        inMemoryStore.put(staleEntry);
+
+        replicator = createReplicator(new StoreConfig().setReplicationInterval(new Duration(1, SECONDS)).setDigestReplicationEnabled(true),
+                new DiscoveryConfig(),
+                true,
+                new DiscoveryConfig(),
+                TESTING_ENTRY,
+                TESTING_TOMBSTONE);
+
+        assertThat(inMemoryStore.getAll()).containsExactlyInAnyOrder(TESTING_ENTRY, TESTING_TOMBSTONE);
+        assertThat(inMemoryStore.get(TESTING_ENTRY.getKey()).getTimestamp()).isEqualTo(TESTING_ENTRY.getTimestamp());
+        assertThat(inMemoryStore.getDigests(null)).isEqualTo(serverStore.getDigests(null));
+    }
+
     private Replicator createReplicator(DiscoveryConfig serverConfig, boolean serverInSelector, DiscoveryConfig discoveryConfig, Entry... initialEntries)
+    {
+        return createReplicator(new StoreConfig().setReplicationInterval(new Duration(1, SECONDS)), serverConfig, serverInSelector, discoveryConfig, initialEntries);
+    }
+
+    private Replicator createReplicator(StoreConfig storeConfig, DiscoveryConfig serverConfig, boolean serverInSelector, DiscoveryConfig discoveryConfig, Entry... initialEntries)
+    {
+        return createReplicator(client, storeConfig, serverConfig, serverInSelector, discoveryConfig, initialEntries);
+    }
+
+    private Replicator createReplicator(HttpClient httpClient, StoreConfig storeConfig, DiscoveryConfig serverConfig, boolean serverInSelector, DiscoveryConfig discoveryConfig, Entry... initialEntries)
     {
         server = new TestingStoreServer(new StoreConfig(), serverConfig);
         serverStore = server.getInMemoryStore();
@@ -293,10 +400,10 @@ public class TestReplicator
                 "dynamic",
                 new NodeInfo("test_environment"),
                 server.getServiceSelector(),
-                client,
+                httpClient,
                 stats,
                 inMemoryStore,
-                new StoreConfig().setReplicationInterval(new Duration(1, SECONDS)),
+                storeConfig,
                 new InitializationTracker(),
                 executor,
                 discoveryConfig);
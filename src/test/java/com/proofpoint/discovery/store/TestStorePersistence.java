@@ -0,0 +1,317 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.discovery.store;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.proofpoint.discovery.DiscoveryConfig;
+import com.proofpoint.discovery.Id;
+import com.proofpoint.discovery.Node;
+import com.proofpoint.discovery.Service;
+import com.proofpoint.discovery.TestingTimeSupplier;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.proofpoint.discovery.store.Entry.entry;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestStorePersistence
+{
+    private static final Id<Node> NODE_ID = Id.random();
+    private static final ImmutableList<Service> SERVICES = ImmutableList.of(
+            new Service(Id.random(), NODE_ID, "storage", "poolA", "/US/West/SC4/rack1/host1/vm1/slot1", ImmutableMap.of("http", "http://localhost:1111")));
+
+    private Path directory;
+    private StoreConfig config;
+    private TestingTimeSupplier timeSupplier;
+    private final DiscoveryConfig discoveryConfig = new DiscoveryConfig().setMaxAge(new Duration(1, TimeUnit.MINUTES));
+
+    @BeforeMethod
+    public void setUp()
+            throws IOException
+    {
+        directory = Files.createTempDirectory("store-persistence");
+        config = new StoreConfig().setPersistenceDirectory(directory.toFile());
+        timeSupplier = new TestingTimeSupplier();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown()
+            throws IOException
+    {
+        MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+    @Test
+    public void testRestoreFromLog()
+    {
+        InMemoryStore store = createStore();
+        StorePersistence persistence = new StorePersistence("dynamic", store, config, discoveryConfig, timeSupplier);
+        assertThat(persistence.load()).isFalse();
+        persistence.start();
+
+        Entry entry = entryOf(NODE_ID, timeSupplier.get().toEpochMilli());
+        Entry tombstone = entry(Id.random().getBytes(), (List<Service>) null, timeSupplier.get().toEpochMilli(), null, null);
+        store.put(entry);
+        store.put(tombstone);
+        persistence.shutdown();
+
+        InMemoryStore restored = createStore();
+        StorePersistence restoredPersistence = new StorePersistence("dynamic", restored, config, discoveryConfig, timeSupplier);
+        assertThat(restoredPersistence.load()).isTrue();
+        assertThat(restoredPersistence.isRestored()).isTrue();
+        assertThat(restored.getAll()).containsExactlyInAnyOrderElementsOf(store.getAll());
+        assertThat(restored.get(tombstone.getKey())).isNotNull();
+        assertThat(restored.getByTypeAndPool("storage", "poolA")).containsExactly(entry);
+    }
+
+    @Test
+    public void testSnapshotSupersedesLogs()
+            throws IOException
+    {
+        InMemoryStore store = createStore();
+        StorePersistence persistence = new StorePersistence("dynamic", store, config, discoveryConfig, timeSupplier);
+        persistence.load();
+        persistence.start();
+
+        Entry entry = entryOf(NODE_ID, timeSupplier.get().toEpochMilli());
+        store.put(entry);
+        persistence.flush();
+        persistence.snapshot();
+        assertThat(listFiles()).containsExactly("snapshot");
+
+        Entry renewed = entryOf(NODE_ID, entry.getTimestamp() + 1);
+        store.put(renewed);
+        persistence.shutdown();
+        assertThat(listFiles()).hasSize(2);
+
+        InMemoryStore restored = createStore();
+        assertThat(new StorePersistence("dynamic", restored, config, discoveryConfig, timeSupplier).load()).isTrue();
+        assertThat(restored.getAll()).containsExactly(renewed);
+    }
+
+    @Test
+    public void testRenewalsCoalesced()
+            throws IOException
+    {
+        InMemoryStore store = createStore();
+        StorePersistence persistence = new StorePersistence("dynamic", store, config, discoveryConfig, timeSupplier);
+        persistence.load();
+
+        // notified directly, so that no scheduled flush runs between the puts
+        Entry entry = entryOf(NODE_ID, timeSupplier.get().toEpochMilli());
+        Entry renewed = entryOf(NODE_ID, entry.getTimestamp() + 2);
+        persistence.notifyPut(entry);
+        persistence.notifyPut(renewed);
+        persistence.notifyPut(entryOf(NODE_ID, entry.getTimestamp() + 1));
+        persistence.flush();
+
+        Path log = directory.resolve(listFiles().get(0));
+        assertThat(Files.size(log)).isLessThan(2L * EntryCodec.encode(renewed, false).length);
+        persistence.shutdown();
+
+        InMemoryStore restored = createStore();
+        assertThat(new StorePersistence("dynamic", restored, config, discoveryConfig, timeSupplier).load()).isTrue();
+        assertThat(restored.getAll()).containsExactly(renewed);
+    }
+
+    @Test
+    public void testExpiredEntriesDiscarded()
+    {
+        InMemoryStore store = createStore();
+        StorePersistence persistence = new StorePersistence("dynamic", store, config, discoveryConfig, timeSupplier);
+        persistence.load();
+        persistence.start();
+
+        long now = timeSupplier.get().toEpochMilli();
+        Entry expired = entryOf(Id.random(), now - TimeUnit.MINUTES.toMillis(2));
+        Entry expiredTombstone = entry(Id.random().getBytes(), (List<Service>) null, now - TimeUnit.DAYS.toMillis(2), null, null);
+        store.put(expired);
+        store.put(expiredTombstone);
+        persistence.shutdown();
+
+        InMemoryStore restored = createStore();
+        assertThat(new StorePersistence("dynamic", restored, config, discoveryConfig, timeSupplier).load()).isFalse();
+        assertThat(restored.getAll()).isEmpty();
+    }
+
+    @Test
+    public void testTruncatedLog()
+            throws IOException
+    {
+        InMemoryStore store = createStore();
+        StorePersistence persistence = new StorePersistence("dynamic", store, config, discoveryConfig, timeSupplier);
+        persistence.load();
+        persistence.start();
+
+        Entry entry = entryOf(NODE_ID, timeSupplier.get().toEpochMilli());
+        store.put(entry);
+        persistence.shutdown();
+
+        // a torn append at the end of the log
+        Path log = directory.resolve(listFiles().get(0));
+        byte[] segment = EntryCodec.encode(entryOf(Id.random(), timeSupplier.get().toEpochMilli()), false);
+        Files.write(log, Arrays.copyOf(segment, segment.length / 2), APPEND);
+
+        InMemoryStore restored = createStore();
+        StorePersistence restoredPersistence = new StorePersistence("dynamic", restored, config, discoveryConfig, timeSupplier);
+        assertThat(restoredPersistence.load()).isTrue();
+        assertThat(restored.getAll()).containsExactly(entry);
+
+        // later entries go to a new log
+        restoredPersistence.start();
+        Entry renewed = entryOf(NODE_ID, entry.getTimestamp() + 1);
+        restored.put(renewed);
+        restoredPersistence.shutdown();
+
+        InMemoryStore reloaded = createStore();
+        new StorePersistence("dynamic", reloaded, config, discoveryConfig, timeSupplier).load();
+        assertThat(reloaded.getAll()).containsExactly(renewed);
+    }
+
+    @Test
+    public void testStaleStateNotServed()
+            throws IOException
+    {
+        InMemoryStore store = createStore();
+        StorePersistence persistence = new StorePersistence("dynamic", store, config, discoveryConfig, timeSupplier);
+        persistence.load();
+        persistence.start();
+
+        Entry entry = entryOf(NODE_ID, timeSupplier.get().toEpochMilli());
+        store.put(entry);
+        persistence.flush();
+        persistence.snapshot();
+        persistence.shutdown();
+
+        // the node was down for longer than the max-age
+        FileTime lastWritten = FileTime.fromMillis(timeSupplier.get().toEpochMilli() - TimeUnit.MINUTES.toMillis(2));
+        for (String file : listFiles()) {
+            Files.setLastModifiedTime(directory.resolve(file), lastWritten);
+        }
+
+        InMemoryStore restored = createStore();
+        StorePersistence restoredPersistence = new StorePersistence("dynamic", restored, config, discoveryConfig, timeSupplier);
+        assertThat(restoredPersistence.load()).isFalse();
+        assertThat(restoredPersistence.isRestored()).isFalse();
+        assertThat(restored.getAll()).containsExactly(entry);
+    }
+
+    @Test
+    public void testCorruptSnapshotNotServed()
+            throws IOException
+    {
+        InMemoryStore store = createStore();
+        StorePersistence persistence = new StorePersistence("dynamic", store, config, discoveryConfig, timeSupplier);
+        persistence.load();
+        persistence.start();
+
+        Entry entry = entryOf(NODE_ID, timeSupplier.get().toEpochMilli());
+        store.put(entry);
+        persistence.flush();
+        persistence.snapshot();
+
+        Entry other = entryOf(Id.random(), timeSupplier.get().toEpochMilli());
+        store.put(other);
+        persistence.shutdown();
+
+        Path snapshot = directory.resolve("snapshot");
+        byte[] bytes = Files.readAllBytes(snapshot);
+        Files.write(snapshot, Arrays.copyOf(bytes, bytes.length / 2));
+
+        InMemoryStore restored = createStore();
+        StorePersistence restoredPersistence = new StorePersistence("dynamic", restored, config, discoveryConfig, timeSupplier);
+        assertThat(restoredPersistence.load()).isFalse();
+        assertThat(restoredPersistence.isRestored()).isFalse();
+        assertThat(restored.get(other.getKey())).isEqualTo(other);
+    }
+
+    @Test
+    public void testCorruptLogNotServed()
+            throws IOException
+    {
+        InMemoryStore store = createStore();
+        StorePersistence persistence = new StorePersistence("dynamic", store, config, discoveryConfig, timeSupplier);
+        persistence.load();
+        persistence.start();
+
+        Entry entry = entryOf(NODE_ID, timeSupplier.get().toEpochMilli());
+        store.put(entry);
+        persistence.flush();
+        store.put(entryOf(Id.random(), timeSupplier.get().toEpochMilli()));
+        persistence.shutdown();
+
+        // damage the first entry rather than the tail of the log
+        Path log = directory.resolve(listFiles().get(0));
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+        EntryCodec.writeSegmentsPrefix(prefix);
+        byte[] bytes = Files.readAllBytes(log);
+        bytes[prefix.size()] = 0x21;
+        Files.write(log, bytes);
+
+        InMemoryStore restored = createStore();
+        StorePersistence restoredPersistence = new StorePersistence("dynamic", restored, config, discoveryConfig, timeSupplier);
+        assertThat(restoredPersistence.load()).isFalse();
+        assertThat(restoredPersistence.isRestored()).isFalse();
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        InMemoryStore store = createStore();
+        StorePersistence persistence = new StorePersistence("dynamic", store, new StoreConfig(), discoveryConfig, timeSupplier);
+        assertThat(persistence.load()).isFalse();
+        persistence.start();
+        store.put(entryOf(NODE_ID, timeSupplier.get().toEpochMilli()));
+        persistence.flush();
+        persistence.snapshot();
+        persistence.shutdown();
+    }
+
+    private List<String> listFiles()
+            throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private InMemoryStore createStore()
+    {
+        return new InMemoryStore(discoveryConfig, timeSupplier);
+    }
+
+    private static Entry entryOf(Id<Node> nodeId, long timestamp)
+    {
+        return entry(nodeId.getBytes(), SERVICES, timestamp, 60_000L, "127.0.0.1");
+    }
+}